@@ -0,0 +1,88 @@
+package cz.muni.fi.mias;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.RAMDirectory;
+
+/**
+ * Implementations of the Lucene directory the index is opened with. Type is
+ * selected by the DIRECTORY property, see {@link Settings#getDirectoryType()}.
+ */
+public enum DirectoryType {
+
+    /**
+     * Implementation chosen by Lucene for the current platform.
+     */
+    FS {
+        @Override
+        public Directory open(Path path) throws IOException {
+            return FSDirectory.open(path.toFile());
+        }
+    },
+    /**
+     * Index files are memory mapped, suitable for 64-bit systems.
+     */
+    MMAP {
+        @Override
+        public Directory open(Path path) throws IOException {
+            return new MMapDirectory(path.toFile());
+        }
+    },
+    /**
+     * Index files are read by positional reads of file channels.
+     */
+    NIO {
+        @Override
+        public Directory open(Path path) throws IOException {
+            return new NIOFSDirectory(path.toFile());
+        }
+    },
+    /**
+     * Whole index is copied to the heap when opened, only for small indexes.
+     * Changes are not written back, so the index is opened by {@link #FS} for
+     * writing.
+     */
+    RAM {
+        @Override
+        public Directory open(Path path) throws IOException {
+            try (Directory directory = FSDirectory.open(path.toFile())) {
+                return new RAMDirectory(directory, IOContext.READONCE);
+            }
+        }
+
+        @Override
+        public Directory openWritable(Path path) throws IOException {
+            LOG.warn("RAM directory cannot be used for writing, index is opened by {}.", FS);
+            return FS.open(path);
+        }
+    };
+
+    private static final Logger LOG = LogManager.getLogger(DirectoryType.class);
+
+    /**
+     * Opens the index directory for reading.
+     *
+     * @param path path to the index
+     * @return opened directory
+     * @throws IOException if the directory cannot be opened
+     */
+    public abstract Directory open(Path path) throws IOException;
+
+    /**
+     * Opens the index directory for writing.
+     *
+     * @param path path to the index
+     * @return opened directory
+     * @throws IOException if the directory cannot be opened
+     */
+    public Directory openWritable(Path path) throws IOException {
+        return open(path);
+    }
+}
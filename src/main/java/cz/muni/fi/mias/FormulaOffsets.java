@@ -0,0 +1,152 @@
+package cz.muni.fi.mias;
+
+import java.io.IOException;
+import java.util.Arrays;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Character offsets of the MathML formulae of a document, so that the formula
+ * at the given position is found without scanning the document again. Formulae
+ * are recognized by the &lt;math&gt; element, or by &lt;m:math&gt; in documents
+ * without it, the first character of the document is never the formula start.
+ * Offsets are computed at indexing time and stored in the index in the compact
+ * form of {@link #toBytes()}, snippets of the search results use them to find
+ * the highlighted formulae.
+ */
+public class FormulaOffsets {
+
+    private final int[] starts;
+    private final int[] ends;
+
+    /**
+     * @param starts offsets of the first characters of the formulae
+     * @param ends offsets after the last characters of the formulae
+     */
+    public FormulaOffsets(int[] starts, int[] ends) {
+        this.starts = starts;
+        this.ends = ends;
+    }
+
+    /**
+     * Finds all formulae of the document in one pass.
+     *
+     * @param content xhtml document
+     * @return offsets of the formulae of the document
+     */
+    public static FormulaOffsets build(String content) {
+        String mathStart = "<math";
+        String mathEnd = "</math>";
+        int start = content.indexOf(mathStart, 1);
+        if (start == -1) {
+            mathStart = "<m:math";
+            mathEnd = "</m:math>";
+            start = content.indexOf(mathStart, 1);
+        }
+        int[] starts = new int[16];
+        int[] ends = new int[16];
+        int size = 0;
+        while (start != -1) {
+            int end = content.indexOf(mathEnd, start);
+            if (end == -1) {
+                break;
+            }
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            starts[size] = start;
+            ends[size] = end + mathEnd.length();
+            size++;
+            start = content.indexOf(mathStart, start + 1);
+        }
+        return new FormulaOffsets(Arrays.copyOf(starts, size), Arrays.copyOf(ends, size));
+    }
+
+    /**
+     * Encodes the offsets as variable length integers, each start as the
+     * difference from the previous start, each end as the length of the
+     * formula.
+     *
+     * @return encoded offsets
+     * @throws IOException never, the offsets are written to a byte array
+     */
+    public BytesRef toBytes() throws IOException {
+        byte[] bytes = new byte[5 * (1 + 2 * starts.length)];
+        ByteArrayDataOutput out = new ByteArrayDataOutput(bytes);
+        out.writeVInt(starts.length);
+        int previous = 0;
+        for (int i = 0; i < starts.length; i++) {
+            out.writeVInt(starts[i] - previous);
+            out.writeVInt(ends[i] - starts[i]);
+            previous = starts[i];
+        }
+        return new BytesRef(bytes, 0, out.getPosition());
+    }
+
+    /**
+     * @param bytes offsets encoded by {@link #toBytes()}
+     * @return decoded offsets
+     */
+    public static FormulaOffsets fromBytes(BytesRef bytes) {
+        ByteArrayDataInput in = new ByteArrayDataInput(bytes.bytes, bytes.offset, bytes.length);
+        int size = in.readVInt();
+        int[] starts = new int[size];
+        int[] ends = new int[size];
+        int previous = 0;
+        for (int i = 0; i < size; i++) {
+            starts[i] = previous + in.readVInt();
+            ends[i] = starts[i] + in.readVInt();
+            previous = starts[i];
+        }
+        return new FormulaOffsets(starts, ends);
+    }
+
+    /**
+     * Checks that the offsets, e.g. stored in the index, point to formulae of
+     * the given document, the source could change after indexing. Each offset
+     * has to start a math element and end with its end tag.
+     *
+     * @param content xhtml document
+     * @return true if all offsets are formulae of the document
+     */
+    public boolean matches(String content) {
+        for (int i = 0; i < starts.length; i++) {
+            if (ends[i] > content.length() || ends[i] <= starts[i]) {
+                return false;
+            }
+            boolean math = content.regionMatches(true, starts[i], "<math", 0, 5)
+                    && content.regionMatches(true, ends[i] - 7, "</math>", 0, 7);
+            boolean prefixedMath = content.regionMatches(true, starts[i], "<m:math", 0, 7)
+                    && content.regionMatches(true, ends[i] - 9, "</m:math>", 0, 9);
+            if (!math && !prefixedMath) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of formulae in the document
+     */
+    public int size() {
+        return starts.length;
+    }
+
+    /**
+     * @param position position of the formula in the document
+     * @return offset of the first character of the formula
+     */
+    public int getStart(int position) {
+        return starts[position];
+    }
+
+    /**
+     * @param position position of the formula in the document
+     * @return offset after the last character of the formula
+     */
+    public int getEnd(int position) {
+        return ends[position];
+    }
+}
@@ -1,6 +1,10 @@
 package cz.muni.fi.mias;
 
 import cz.muni.fi.mias.indexing.Indexing;
+import cz.muni.fi.mias.indexing.ParsingBenchmark;
+import cz.muni.fi.mias.search.SnippetBenchmark;
+import cz.muni.fi.mias.search.StoredFieldBenchmark;
+import cz.muni.fi.mias.search.snippets.SnippetAssemblyBenchmark;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -58,6 +62,22 @@ public class MIaS {
                 InDocProcessing idp = new InDocProcessing(cmd.getOptionValues(Settings.OPTION_INDOCPROCESS)[0], cmd.getOptionValues(Settings.OPTION_INDOCPROCESS)[1]);
                 idp.process();
             }
+            if (cmd.hasOption(Settings.OPTION_PARSEBENCHMARK)) {
+                ParsingBenchmark benchmark = new ParsingBenchmark(cmd.getOptionValues(Settings.OPTION_PARSEBENCHMARK)[0], cmd.getOptionValues(Settings.OPTION_PARSEBENCHMARK)[1]);
+                benchmark.run();
+            }
+            if (cmd.hasOption(Settings.OPTION_SNIPPETBENCHMARK)) {
+                SnippetBenchmark benchmark = new SnippetBenchmark(cmd.getOptionValues(Settings.OPTION_SNIPPETBENCHMARK)[0], cmd.getOptionValues(Settings.OPTION_SNIPPETBENCHMARK)[1]);
+                benchmark.run();
+            }
+            if (cmd.hasOption(Settings.OPTION_ASSEMBLYBENCHMARK)) {
+                SnippetAssemblyBenchmark benchmark = new SnippetAssemblyBenchmark(cmd.getOptionValues(Settings.OPTION_ASSEMBLYBENCHMARK)[0], cmd.getOptionValues(Settings.OPTION_ASSEMBLYBENCHMARK)[1]);
+                benchmark.run();
+            }
+            if (cmd.hasOption(Settings.OPTION_FIELDBENCHMARK)) {
+                StoredFieldBenchmark benchmark = new StoredFieldBenchmark(cmd.getOptionValues(Settings.OPTION_FIELDBENCHMARK)[0], cmd.getOptionValues(Settings.OPTION_FIELDBENCHMARK)[1]);
+                benchmark.run();
+            }
         } catch (ParseException ex) {
             printHelp(options);
         }
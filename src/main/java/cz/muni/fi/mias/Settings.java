@@ -1,5 +1,6 @@
 package cz.muni.fi.mias;
 
+import cz.muni.fi.mias.indexing.WriterProfile;
 import java.io.FileInputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -33,6 +34,10 @@ public class Settings {
     public static final String OPTION_DELETEINDEX = "deleteindex";
     public static final String OPTION_STATS = "stats";
     public static final String OPTION_INDOCPROCESS = "indocprocess";
+    public static final String OPTION_PARSEBENCHMARK = "parsebenchmark";
+    public static final String OPTION_SNIPPETBENCHMARK = "snippetbenchmark";
+    public static final String OPTION_ASSEMBLYBENCHMARK = "assemblybenchmark";
+    public static final String OPTION_FIELDBENCHMARK = "fieldbenchmark";
     
     public static Options getMIaSOptions() {
         Options options = new Options();
@@ -73,6 +78,30 @@ public class Settings {
             .argName("input_path> <root_dir")
             .desc("where root_dir is an absolute path to a directory in the input_path. Processes math formulae and inserts M-terms into documents created under root_dir.")
             .build());
+        options.addOption(Option.builder(OPTION_PARSEBENCHMARK)
+            .hasArgs()
+            .numberOfArgs(2)
+            .argName("input_path> <root_dir")
+            .desc("Compares single pass and original document parsing on the documents in input_path without writing the index.")
+            .build());
+        options.addOption(Option.builder(OPTION_SNIPPETBENCHMARK)
+            .hasArgs()
+            .numberOfArgs(2)
+            .argName("query_file> <hits")
+            .desc("Compares original and shared resolution of snippet formula spans for the top hits of the query in query_file.")
+            .build());
+        options.addOption(Option.builder(OPTION_ASSEMBLYBENCHMARK)
+            .hasArgs()
+            .numberOfArgs(2)
+            .argName("xhtml_file> <term")
+            .desc("Measures snippet assembly on growing copies of xhtml_file highlighting its last formulae and term.")
+            .build());
+        options.addOption(Option.builder(OPTION_FIELDBENCHMARK)
+            .hasArgs()
+            .numberOfArgs(2)
+            .argName("query_file> <hits")
+            .desc("Compares reading all stored fields and only the result fields of the top hits of the query in query_file.")
+            .build());
         return options;
     }
     
@@ -105,8 +134,8 @@ public class Settings {
 
     /**
      * 
-     * @return Preference for updating of the already indexed files. If true, the already indexed files will be updated. If false
-     * only new files will be added.
+     * @return Preference for updating of the already indexed files. If true, the already indexed files will be updated
+     * when their modification time or size changed. If false only new files will be added.
      */
     public static boolean getUpdateFiles() {
         String duplicates = config.getProperty("UPDATE");
@@ -130,6 +159,315 @@ public class Settings {
         return result;
     }
 
+    /**
+     * 
+     * @return Maximum number of files waiting in the queue for the indexing threads.
+     */
+    public static int getQueueCapacity() {
+        return getPositiveInt("QUEUE_CAPACITY", 1000);
+    }
+
+    /**
+     * 
+     * @return Implementation of the directory the index is opened with, FS if not set.
+     */
+    public static DirectoryType getDirectoryType() {
+        String prop = config.getProperty("DIRECTORY");
+        if (prop == null || prop.isEmpty()) {
+            return DirectoryType.FS;
+        }
+        try {
+            return DirectoryType.valueOf(prop.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Unknown DIRECTORY {}, using FS.", prop);
+            return DirectoryType.FS;
+        }
+    }
+
+    /**
+     * 
+     * @return If true, postings and stored fields of the index are read once after it is opened for searching.
+     */
+    public static boolean getWarmUp() {
+        return Boolean.parseBoolean(config.getProperty("WARMUP"));
+    }
+
+    /**
+     * 
+     * @return Tuning profile of the index writer, DEFAULT if not set.
+     */
+    public static WriterProfile getWriterProfile() {
+        String prop = config.getProperty("WRITER_PROFILE");
+        if (prop == null || prop.isEmpty()) {
+            return WriterProfile.DEFAULT;
+        }
+        try {
+            return WriterProfile.valueOf(prop.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            LOG.warn("Unknown WRITER_PROFILE {}, using DEFAULT.", prop);
+            return WriterProfile.DEFAULT;
+        }
+    }
+
+    /**
+     * 
+     * @return Size of the index writer RAM buffer in MB overriding the writer profile, -1 if not set.
+     */
+    public static double getRamBufferSize() {
+        String n = config.getProperty("RAM_BUFFER_MB");
+        double result = -1;
+        try {
+            result = Double.parseDouble(n);
+        } catch (Exception e) {
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return Maximum number of segments the index is merged to by the optimize option.
+     */
+    public static int getOptimizeMaxSegments() {
+        return getPositiveInt("OPTIMIZE_MAX_SEGMENTS", 1);
+    }
+
+    /**
+     * 
+     * @return If true, optimize option only merges segments with deleted documents.
+     */
+    public static boolean getOptimizeDeletesOnly() {
+        return Boolean.parseBoolean(config.getProperty("OPTIMIZE_DELETES_ONLY"));
+    }
+
+    /**
+     * 
+     * @return If true, documents created from one file are written to the index as one block. New index is
+     * filled by plain adds without deduplication by id, existing index replaces all documents with the same path at once. If false, each
+     * document is updated separately by its id.
+     */
+    public static boolean getBatchWrites() {
+        return Boolean.parseBoolean(config.getProperty("BATCH_WRITES"));
+    }
+
+    /**
+     * 
+     * @return If true, documents are indexed by a pipeline with separate load, analysis and write stages.
+     * If false, each indexing thread processes whole files.
+     */
+    public static boolean getPipeline() {
+        return Boolean.parseBoolean(config.getProperty("PIPELINE"));
+    }
+
+    /**
+     * 
+     * @return Number of threads reading and decompressing files in the indexing pipeline.
+     */
+    public static int getPipelineLoadThreads() {
+        return getPositiveInt("PIPELINE_LOAD_THREADS", 1);
+    }
+
+    /**
+     * 
+     * @return Number of threads parsing documents and tokenizing math in the indexing pipeline.
+     */
+    public static int getPipelineAnalysisThreads() {
+        return getPositiveInt("PIPELINE_ANALYSIS_THREADS", Math.max(1, getNumThreads() - 2));
+    }
+
+    /**
+     * 
+     * @return Number of threads submitting documents to the index writer in the indexing pipeline.
+     */
+    public static int getPipelineWriterThreads() {
+        return getPositiveInt("PIPELINE_WRITER_THREADS", 1);
+    }
+
+    /**
+     * 
+     * @return Maximum number of files waiting between two stages of the indexing pipeline.
+     */
+    public static int getPipelineQueueCapacity() {
+        return getPositiveInt("PIPELINE_QUEUE_CAPACITY", 100);
+    }
+
+    private static int getPositiveInt(String key, int defaultValue) {
+        int result = defaultValue;
+        try {
+            result = Integer.parseInt(config.getProperty(key));
+        } catch (Exception e) {
+        }
+        if (result < 1) {
+            result = defaultValue;
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return Number of threads extracting formulae of query variants and running parts of split searches,
+     * shared by all searches.
+     */
+    public static int getQueryThreads() {
+        return getPositiveInt("QUERY_THREADS", Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * 
+     * @return Number of threads searching segments of the index concurrently, shared by all searches, 1 means
+     * segments are searched sequentially by the searching thread.
+     */
+    public static int getSegmentThreads() {
+        return getPositiveInt("SEGMENT_THREADS", 1);
+    }
+
+    /**
+     * 
+     * @return If true, presentation and content parts of BOTH variant queries are searched as separate concurrent
+     * queries and their scores are summed.
+     */
+    public static boolean getSplitMathSearch() {
+        return Boolean.parseBoolean(config.getProperty("SPLIT_MATH_SEARCH"));
+    }
+
+    /**
+     * 
+     * @return Maximum number of best hits of each part of a split search merged into the results.
+     */
+    public static int getSplitMathDepth() {
+        return getPositiveInt("SPLIT_MATH_DEPTH", 1000);
+    }
+
+    /**
+     * 
+     * @return Number of threads extracting snippets of the results, shared by all searches.
+     */
+    public static int getSnippetThreads() {
+        return getPositiveInt("SNIPPET_THREADS", Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * 
+     * @return Time in milliseconds one search can spend extracting snippets, 0 if not limited.
+     */
+    public static int getSnippetTimeout() {
+        return getPositiveInt("SNIPPET_TIMEOUT", 0);
+    }
+
+    /**
+     * 
+     * @return Minimum weight of a formula kept in math queries, 0 keeps all formulae.
+     */
+    public static float getMathMinBoost() {
+        float result = 0;
+        try {
+            result = Math.max(0, Float.parseFloat(config.getProperty("MATH_MIN_BOOST")));
+        } catch (Exception e) {
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return Maximum number of formulae with the highest weights kept in a math query of one variant, 0 if not
+     * limited.
+     */
+    public static int getMathMaxClauses() {
+        return getPositiveInt("MATH_MAX_CLAUSES", 0);
+    }
+
+    /**
+     * 
+     * @return Maximum fraction of documents containing a formula kept in math queries, 1 keeps all formulae.
+     */
+    public static float getMathMaxDocFreq() {
+        float result = 1;
+        try {
+            result = Float.parseFloat(config.getProperty("MATH_MAX_DOC_FREQ"));
+        } catch (Exception e) {
+        }
+        return result > 0 && result < 1 ? result : 1;
+    }
+
+    /**
+     * 
+     * @return Time in milliseconds after which collection of the hits of one search stops, 0 if not limited.
+     */
+    public static int getSearchTimeout() {
+        return getPositiveInt("SEARCH_TIMEOUT", 0);
+    }
+
+    /**
+     * 
+     * @return Maximum number of queries whose top hits are cached, 0 disables the cache.
+     */
+    public static int getQueryCacheSize() {
+        String n = config.getProperty("QUERY_CACHE_SIZE");
+        int result = 100;
+        try {
+            result = Math.max(0, Integer.parseInt(n));
+        } catch (Exception e) {
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return Maximum number of formulae of math queries whose extracted M-terms are cached, 0 disables the cache.
+     */
+    public static int getMathQueryCacheSize() {
+        String n = config.getProperty("MATH_QUERY_CACHE_SIZE");
+        int result = 1000;
+        try {
+            result = Math.max(0, Integer.parseInt(n));
+        } catch (Exception e) {
+        }
+        return result;
+    }
+
+    /**
+     * 
+     * @return Time in seconds after which cached top hits of a query expire.
+     */
+    public static int getQueryCacheTTL() {
+        return getPositiveInt("QUERY_CACHE_TTL", 300);
+    }
+
+    /**
+     * 
+     * @return Maximum number of zip archives kept open for snippet extraction.
+     */
+    public static int getZipCacheSize() {
+        return getPositiveInt("ZIP_CACHE_SIZE", 64);
+    }
+
+    /**
+     * 
+     * @return Time in seconds after which unused zip archive is closed.
+     */
+    public static int getZipCacheIdleTime() {
+        return getPositiveInt("ZIP_CACHE_IDLE_TIME", 60);
+    }
+
+    /**
+     * 
+     * @return Number of threads walking the input directory tree, 1 means the tree is walked by the main thread.
+     */
+    public static int getDiscoveryThreads() {
+        return getPositiveInt("DISCOVERY_THREADS", 1);
+    }
+
+    /**
+     * 
+     * @return File with the manifest of discovered files, null if the manifest is not used.
+     */
+    public static Path getManifestFile() {
+        String result = config.getProperty("MANIFEST");
+        if (result == null || result.isEmpty()) {
+            return null;
+        }
+        return Paths.get(result);
+    }
+
     /**
      * 
      * @return Maximum number of results that the system retrieves.
@@ -148,6 +486,21 @@ public class Settings {
         config.setProperty("MAXRESULTS", maxResults);
     }
 
+    /**
+     * 
+     * @return Number of hits after which collection of the hits stops once each segment collected the top hits,
+     * 0 if all hits are collected.
+     */
+    public static int getTotalHitsLimit() {
+        String n = config.getProperty("TOTAL_HITS_LIMIT");
+        int result = 0;
+        try {
+            result = Math.max(0, Integer.parseInt(n));
+        } catch (Exception e) {
+        }
+        return result;
+    }
+
     /**
      * 
      * @return A limit for the number of indexed files for one run. -1 means no limit.
@@ -170,4 +523,37 @@ public class Settings {
         boolean result = Boolean.parseBoolean(prop);
         return result;
     }
+
+    /**
+     *
+     * @return If true, compressed source of html documents is stored in the index and snippets are extracted
+     * from it instead of the original files. Has no effect when {@link #getIndexFormulaeDocuments()} is set,
+     * as formula documents are not html documents.
+     */
+    public static boolean getStoreSnippetSource() {
+        return Boolean.parseBoolean(config.getProperty("STORE_SNIPPET_SOURCE"));
+    }
+
+    /**
+     *
+     * @return If true, character offsets of the formulae of html documents are stored in the index, so snippets
+     * do not have to scan the documents for formulae. Has no effect when {@link #getIndexFormulaeDocuments()}
+     * is set.
+     */
+    public static boolean getStoreFormulaOffsets() {
+        return Boolean.parseBoolean(config.getProperty("STORE_FORMULA_OFFSETS"));
+    }
+
+    /**
+     *
+     * @return If true, every html document is read and parsed only once during indexing. If false, the document
+     * is parsed separately for text extraction and for each of the math tokenizers.
+     */
+    public static boolean getSinglePassParsing() {
+        String prop = config.getProperty("SINGLE_PASS_PARSING");
+        if (prop == null || prop.isEmpty()) {
+            return true;
+        }
+        return Boolean.parseBoolean(prop);
+    }
 }
@@ -0,0 +1,175 @@
+package cz.muni.fi.mias.indexing;
+
+import cz.muni.fi.mias.indexing.doc.MIasDocumentFactory;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.document.DateTools;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Decides whether a file has to be indexed by comparing it with the documents
+ * already stored in the index under its path. Files are compared using stored
+ * modified and filesize fields, zip archives entry by entry using the
+ * archivepath field. Only zip entries a document is built for are compared,
+ * other entries (images, tex sources, etc.) are never in the index. Index is read as it was when the detector was opened.
+ * Detector is thread-safe.
+ *
+ * @author Dominik Szalai - emptulik at gmail.com
+ */
+public class ChangeDetector implements Closeable
+{
+    private static final Logger LOG = LogManager.getLogger(ChangeDetector.class);
+    private final DirectoryReader reader;
+    private final Path rootPath;
+    private final boolean updateFiles;
+    private final AtomicLong skipped = new AtomicLong(0);
+    private final MIasDocumentFactory documentFactory = new MIasDocumentFactory();
+
+    private ChangeDetector(DirectoryReader reader, Path rootPath, boolean updateFiles)
+    {
+        this.reader = reader;
+        this.rootPath = rootPath;
+        this.updateFiles = updateFiles;
+    }
+
+    /**
+     * Opens detector over the index in given directory.
+     *
+     * @param directory index directory
+     * @param rootPath path the indexed paths are relative to
+     * @param updateFiles if true, files are skipped only when they did not
+     * change since they were indexed, if false all already indexed files are
+     * skipped
+     * @return new detector or null if there is no index yet
+     * @throws IOException if the index cannot be opened
+     */
+    public static ChangeDetector open(Directory directory, Path rootPath, boolean updateFiles) throws IOException
+    {
+        if (!DirectoryReader.indexExists(directory))
+        {
+            return null;
+        }
+        return new ChangeDetector(DirectoryReader.open(directory), rootPath, updateFiles);
+    }
+
+    /**
+     * @param file file to be indexed
+     * @param attrs attributes of the file
+     * @return true if the file does not have to be indexed
+     */
+    public boolean shouldSkip(Path file, BasicFileAttributes attrs)
+    {
+        boolean result = false;
+        try
+        {
+            String path = rootPath.relativize(file).toString();
+            DocsEnum docs = MultiFields.getTermDocsEnum(reader, MultiFields.getLiveDocs(reader), "path", new BytesRef(path));
+            if (docs != null && docs.nextDoc() != DocIdSetIterator.NO_MORE_DOCS)
+            {
+                if (!updateFiles)
+                {
+                    result = true;
+                }
+                else if (file.getFileName().toString().endsWith("zip"))
+                {
+                    result = isZipUnchanged(file, docs);
+                }
+                else
+                {
+                    result = isUnchanged(getDocument(docs.docID()), attrs.lastModifiedTime().toMillis(), attrs.size());
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            LOG.error("Cannot check changes of file {}", file);
+            LOG.error(ex);
+        }
+
+        if (result)
+        {
+            skipped.incrementAndGet();
+        }
+        return result;
+    }
+
+    private boolean isZipUnchanged(Path file, DocsEnum docs) throws IOException
+    {
+        Map<String, Document> indexed = new HashMap<>();
+        do
+        {
+            Document document = getDocument(docs.docID());
+            String archivePath = document.get("archivepath");
+            if (archivePath != null && !indexed.containsKey(archivePath))
+            {
+                indexed.put(archivePath, document);
+            }
+        }
+        while (docs.nextDoc() != DocIdSetIterator.NO_MORE_DOCS);
+
+        try (ZipFile zipFile = new ZipFile(file.toFile()))
+        {
+            Enumeration<? extends ZipEntry> e = zipFile.entries();
+            while (e.hasMoreElements())
+            {
+                ZipEntry entry = e.nextElement();
+                if (!entry.isDirectory() && documentFactory.isIndexed(MIasDocumentFactory.getExtension(entry.getName())))
+                {
+                    Document document = indexed.remove(entry.getName());
+                    if (document == null || !isUnchanged(document, entry.getTime(), entry.getSize()))
+                    {
+                        return false;
+                    }
+                }
+            }
+        }
+        return indexed.isEmpty();
+    }
+
+    private Document getDocument(int docID) throws IOException
+    {
+        DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor("modified", "filesize", "archivepath");
+        reader.document(docID, visitor);
+        return visitor.getDocument();
+    }
+
+    private boolean isUnchanged(Document document, long modified, long size)
+    {
+        IndexableField filesize = document.getField("filesize");
+        return DateTools.timeToString(modified, DateTools.Resolution.MINUTE).equals(document.get("modified"))
+                && filesize != null && filesize.numericValue() != null
+                && filesize.numericValue().longValue() == size;
+    }
+
+    /**
+     * @return number of files skipped so far
+     */
+    public long getSkipped()
+    {
+        return skipped.get();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        reader.close();
+    }
+}
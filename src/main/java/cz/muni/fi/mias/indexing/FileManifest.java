@@ -0,0 +1,274 @@
+package cz.muni.fi.mias.indexing;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Persistent list of discovered files with their modification time and size.
+ * Manifest of the previous run is loaded at start, files found by the current
+ * run are recorded and compared with it, so unchanged files can be skipped
+ * without looking into the index and files removed since the previous run can
+ * be found. Changed files are recorded only after their documents are written
+ * to the index, files whose indexing failed (or that yielded no documents) are
+ * left out of the stored manifest, so the next run tries them again. Manifest
+ * is stored as a text file with a header line holding the absolute input
+ * directory the paths are relative to and one tab separated line (modified,
+ * size, relative path) for each file. Manifest of a different input directory
+ * is not used at all, so indexing another directory into the same index does
+ * not delete documents of the first one.
+ *
+ * @author Dominik Szalai - emptulik at gmail.com
+ */
+public class FileManifest
+{
+    private static final Logger LOG = LogManager.getLogger(FileManifest.class);
+    private static final String ROOT_HEADER = "#root\t";
+    private final Path manifestFile;
+    private final Path rootPath;
+    private final Map<String, long[]> previous = new HashMap<>();
+    private final Map<String, long[]> current = new ConcurrentHashMap<>();
+    private final Map<String, long[]> pending = new ConcurrentHashMap<>();
+
+    private FileManifest(Path manifestFile, Path rootPath)
+    {
+        this.manifestFile = manifestFile;
+        this.rootPath = rootPath;
+    }
+
+    /**
+     * Opens manifest stored in the given file.
+     *
+     * @param manifestFile file with the manifest, null if manifest is not used
+     * @param rootPath path the recorded paths are relative to
+     * @param loadPrevious if false, manifest of the previous run is ignored,
+     * for example because the index was deleted since
+     * @return manifest or null if manifestFile is null or the existing manifest
+     * was written for a different root path
+     * @throws IOException if the existing manifest cannot be read
+     */
+    public static FileManifest open(Path manifestFile, Path rootPath, boolean loadPrevious) throws IOException
+    {
+        if (manifestFile == null)
+        {
+            return null;
+        }
+
+        FileManifest manifest = new FileManifest(manifestFile, rootPath);
+        if (loadPrevious && Files.exists(manifestFile))
+        {
+            Path previousRoot = manifest.load();
+            if (previousRoot == null)
+            {
+                LOG.warn("Manifest {} does not record its input directory, it is ignored and will be replaced.", manifestFile);
+                manifest.previous.clear();
+            }
+            else if (!previousRoot.equals(toRoot(rootPath)))
+            {
+                LOG.warn("Manifest {} belongs to input directory {}, it is not used for {}.", manifestFile, previousRoot, toRoot(rootPath));
+                return null;
+            }
+            else
+            {
+                LOG.info("Loaded manifest with {} files.", manifest.previous.size());
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Opens existing manifest with the root path recorded in it, for removing
+     * its files, see {@link #remove(String)}.
+     *
+     * @param manifestFile file with the manifest, null if manifest is not used
+     * @return manifest or null if manifestFile is null, does not exist or does
+     * not record its root path
+     * @throws IOException if the manifest cannot be read
+     */
+    public static FileManifest open(Path manifestFile) throws IOException
+    {
+        if (manifestFile == null || !Files.exists(manifestFile))
+        {
+            return null;
+        }
+
+        FileManifest probe = new FileManifest(manifestFile, null);
+        Path root = probe.load();
+        if (root == null)
+        {
+            LOG.warn("Manifest {} does not record its input directory, it is not updated.", manifestFile);
+            return null;
+        }
+        FileManifest manifest = new FileManifest(manifestFile, root);
+        manifest.previous.putAll(probe.previous);
+        return manifest;
+    }
+
+    private static Path toRoot(Path rootPath)
+    {
+        return rootPath.toAbsolutePath().normalize();
+    }
+
+    /**
+     * Reads entries of the stored manifest into previous.
+     *
+     * @return root path recorded in the manifest, null if there is none
+     */
+    private Path load() throws IOException
+    {
+        Path root = null;
+        try (BufferedReader reader = Files.newBufferedReader(manifestFile, StandardCharsets.UTF_8))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                if (line.startsWith(ROOT_HEADER))
+                {
+                    root = Paths.get(line.substring(ROOT_HEADER.length()));
+                    continue;
+                }
+                String[] parts = line.split("\t", 3);
+                if (parts.length == 3)
+                {
+                    previous.put(parts[2], new long[]{Long.parseLong(parts[0]), Long.parseLong(parts[1])});
+                }
+            }
+        }
+        return root;
+    }
+
+    /**
+     * @return path the recorded paths are relative to
+     */
+    public Path getRootPath()
+    {
+        return rootPath;
+    }
+
+    /**
+     * Records file found by the current run. Unchanged file is recorded at
+     * once, changed file only when it is confirmed by {@link #indexed(String)}.
+     *
+     * @param file discovered file
+     * @param attrs attributes of the file
+     * @return true if the file has the same modification time and size as in
+     * the previous run
+     */
+    public boolean record(Path file, BasicFileAttributes attrs)
+    {
+        String path = rootPath.relativize(file).toString();
+        long[] entry = new long[]{attrs.lastModifiedTime().toMillis(), attrs.size()};
+        long[] previousEntry = previous.get(path);
+        boolean unchanged = previousEntry != null && previousEntry[0] == entry[0] && previousEntry[1] == entry[1];
+        if (unchanged)
+        {
+            current.put(path, entry);
+        }
+        else
+        {
+            pending.put(path, entry);
+        }
+        return unchanged;
+    }
+
+    /**
+     * Confirms that the documents of the recorded file are in the index.
+     *
+     * @param path path of the file relative to the root path, as stored in the
+     * path field of its documents
+     */
+    public void indexed(String path)
+    {
+        long[] entry = pending.remove(path);
+        if (entry != null)
+        {
+            current.put(path, entry);
+        }
+    }
+
+    /**
+     * @param file recorded file
+     * @see #indexed(String)
+     */
+    public void indexed(Path file)
+    {
+        indexed(rootPath.relativize(file).toString());
+    }
+
+    /**
+     * Drops file whose documents were deleted from the index, so the next run
+     * does not skip it as unchanged.
+     *
+     * @param path path of the file relative to the root path
+     * @return true if the file was recorded
+     */
+    public boolean remove(String path)
+    {
+        boolean result = previous.remove(path) != null;
+        result |= current.remove(path) != null;
+        result |= pending.remove(path) != null;
+        return result;
+    }
+
+    /**
+     * @return relative paths of files present in the previous run but not found
+     * by the current one
+     */
+    public Set<String> getRemoved()
+    {
+        Set<String> result = new TreeSet<>(previous.keySet());
+        result.removeAll(current.keySet());
+        result.removeAll(pending.keySet());
+        return result;
+    }
+
+    /**
+     * Stores the manifest, replacing the previous one.
+     *
+     * @param complete true if the whole tree was walked, false if the walk was
+     * stopped and files not visited by the current run have to be kept from the
+     * previous one
+     * @throws IOException if the manifest cannot be written
+     */
+    public void save(boolean complete) throws IOException
+    {
+        Map<String, long[]> result = new HashMap<>();
+        if (!complete)
+        {
+            result.putAll(previous);
+        }
+        if (!pending.isEmpty())
+        {
+            LOG.info("{} files were not indexed and will be tried again.", pending.size());
+            result.keySet().removeAll(pending.keySet());
+        }
+        result.putAll(current);
+
+        Path temp = manifestFile.resolveSibling(manifestFile.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8))
+        {
+            writer.write(ROOT_HEADER + toRoot(rootPath));
+            writer.newLine();
+            for (Map.Entry<String, long[]> entry : result.entrySet())
+            {
+                writer.write(entry.getValue()[0] + "\t" + entry.getValue()[1] + "\t" + entry.getKey());
+                writer.newLine();
+            }
+        }
+        Files.move(temp, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOG.info("Saved manifest with {} files.", result.size());
+    }
+}
@@ -3,8 +3,11 @@ package cz.muni.fi.mias.indexing;
 import cz.muni.fi.mias.PayloadSimilarity;
 import cz.muni.fi.mias.Settings;
 import cz.muni.fi.mias.indexing.doc.MIaSFileVisitor;
+import cz.muni.fi.mias.indexing.doc.ParallelFileWalker;
 import cz.muni.fi.mias.indexing.scheduling.BackgroundProcessMonitor;
 import cz.muni.fi.mias.indexing.scheduling.BackgroundTaskHandler;
+import cz.muni.fi.mias.indexing.scheduling.DocumentBatchWriter;
+import cz.muni.fi.mias.indexing.scheduling.IndexingPipeline;
 import cz.muni.fi.mias.math.MathTokenizer;
 import java.io.File;
 import java.io.IOException;
@@ -14,18 +17,32 @@ import java.nio.file.FileVisitor;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.KeepOnlyLastCommitDeletionPolicy;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.MergeScheduler;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.Directory;
 import org.apache.lucene.util.Version;
 
 /**
@@ -38,6 +55,7 @@ import org.apache.lucene.util.Version;
 public class Indexing {
 
     private static final Logger LOG = LogManager.getLogger(Indexing.class);
+    private static final long OPTIMIZE_PROGRESS_INTERVAL = 10000;
     
     private Path indexDirectory;
     private Analyzer analyzer = new StandardAnalyzer();
@@ -76,15 +94,58 @@ public class Indexing {
             ps.setDiscountOverlaps(false);
             config.setSimilarity(ps);
             config.setIndexDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy());
-            try (IndexWriter writer = new IndexWriter(FSDirectory.open(indexDirectory.toFile()), config))
+            WriterProfile profile = Settings.getWriterProfile();
+            profile.apply(config);
+            LOG.info("Index writer uses {}", profile.describe(config));
+            Directory directory = Settings.getDirectoryType().openWritable(indexDirectory);
+            DocumentBatchWriter.Mode mode = DocumentBatchWriter.Mode.UPDATE_EACH;
+            if (Settings.getBatchWrites()) {
+                mode = DirectoryReader.indexExists(directory) ? DocumentBatchWriter.Mode.UPDATE_BLOCK : DocumentBatchWriter.Mode.ADD_BLOCK;
+            }
+            LOG.info("Documents are written in {} mode.", mode);
+            if (Settings.getIndexFormulaeDocuments() && (Settings.getStoreSnippetSource() || Settings.getStoreFormulaOffsets())) {
+                LOG.warn("STORE_SNIPPET_SOURCE and STORE_FORMULA_OFFSETS apply only to html documents and are ignored, set FORMULA_DOCUMENTS to FALSE to use them.");
+            }
+            try (ChangeDetector changeDetector = ChangeDetector.open(directory, documentDirectory, Settings.getUpdateFiles());
+                    IndexWriter writer = new IndexWriter(directory, config))
             {
+                FileManifest manifest = FileManifest.open(Settings.getManifestFile(), documentDirectory, changeDetector != null);
+                DocumentBatchWriter documentWriter = new DocumentBatchWriter(writer, mode, manifest);
                 BackgroundProcessMonitor fileProgressMonitor = new BackgroundProcessMonitor();
-                FileVisitor<Path> fileVisitor = new MIaSFileVisitor(fileProgressMonitor, documentDirectory);
-                BackgroundTaskHandler taskHandler = new BackgroundTaskHandler(fileProgressMonitor, writer, documentDirectory);
-                taskHandler.initThreads();
-                Files.walkFileTree(documentDirectory, fileVisitor);
-                
-                taskHandler.shutdown();
+                MIaSFileVisitor fileVisitor = new MIaSFileVisitor(fileProgressMonitor, documentDirectory, changeDetector, manifest);
+                if (Settings.getPipeline())
+                {
+                    IndexingPipeline pipeline = new IndexingPipeline(fileProgressMonitor, documentWriter, documentDirectory);
+                    pipeline.start();
+                    try
+                    {
+                        walkFileTree(documentDirectory, fileVisitor, fileProgressMonitor);
+                    }
+                    finally
+                    {
+                        pipeline.shutdown();
+                    }
+                }
+                else
+                {
+                    BackgroundTaskHandler taskHandler = new BackgroundTaskHandler(fileProgressMonitor, documentWriter, documentDirectory);
+                    taskHandler.initThreads();
+                    walkFileTree(documentDirectory, fileVisitor, fileProgressMonitor);
+                    taskHandler.shutdown();
+                }
+                LOG.info(documentWriter);
+                if (changeDetector != null) {
+                    LOG.info("Skipped {} already indexed files.", changeDetector.getSkipped());
+                }
+                if (manifest != null) {
+                    if (fileVisitor.isComplete()) {
+                        for (String removed : manifest.getRemoved()) {
+                            LOG.info("Deleting removed file {}.", removed);
+                            writer.deleteDocuments(new Term("path", removed));
+                        }
+                    }
+                    manifest.save(fileVisitor.isComplete());
+                }
                 LOG.info("Getting list of documents to index.");
 //                List<File> files = getDocs(documentDirectory);
 //                countFiles(files);
@@ -96,23 +157,154 @@ public class Indexing {
         }
     }
 
+    private void walkFileTree(Path documentDirectory, FileVisitor<Path> fileVisitor, BackgroundProcessMonitor fileProgressMonitor) throws IOException, InterruptedException {
+        try {
+            int threads = Settings.getDiscoveryThreads();
+            if (threads > 1) {
+                LOG.info("Walking {} with {} threads.", documentDirectory, threads);
+                new ParallelFileWalker(fileVisitor, threads).walk(documentDirectory);
+            } else {
+                Files.walkFileTree(documentDirectory, fileVisitor);
+            }
+        } finally {
+            fileProgressMonitor.finishLoading();
+        }
+    }
+
     /**
-     * Optimizes the index.
+     * Optimizes the index by merging its segments. Index is merged to at most
+     * {@link Settings#getOptimizeMaxSegments()} segments, or only segments with
+     * deletions are merged if {@link Settings#getOptimizeDeletesOnly()} is set.
+     * Merging blocks a helper thread while its progress is logged every
+     * {@link #OPTIMIZE_PROGRESS_INTERVAL} ms, so the reported time ends when
+     * the merges do. The method always returns only after the merges finish,
+     * the helper thread just allows the progress logging, since closing the
+     * writer would wait for running merges anyway. CPU and user time are
+     * measured in the merge threads of the writer.
      */
-    public void optimize() {        
-        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_31, analyzer);
-        config.setIndexDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy());  
-        // TODO what do we measure here ? time of optimization or optimiziation
-        // and index opening aswell
+    public void optimize() {
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_45, analyzer);
+        config.setIndexDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy());
+        WriterProfile profile = Settings.getWriterProfile();
+        profile.apply(config);
+        TimedMergeScheduler mergeScheduler = new TimedMergeScheduler(config.getMergeScheduler());
+        config.setMergeScheduler(mergeScheduler);
+        LOG.info("Index writer uses {}", profile.describe(config));
         startTime = System.currentTimeMillis();
-        try(IndexWriter writer = new IndexWriter(FSDirectory.open(indexDirectory.toFile()), config)){
-//            writer.optimize();    
+        try (Directory directory = Settings.getDirectoryType().openWritable(indexDirectory)) {
+            Map<String, Long> segmentsBefore = getSegmentSizes(directory);
+            LOG.info("Index has {} segments before optimization.", segmentsBefore.size());
+            try (IndexWriter writer = new IndexWriter(directory, config)) {
+                final ExecutorService merger = Executors.newSingleThreadExecutor();
+                try {
+                    Future<?> merge = merger.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            forceMerge(writer);
+                            return null;
+                        }
+                    });
+                    while (true) {
+                        try {
+                            merge.get(OPTIMIZE_PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+                            break;
+                        } catch (TimeoutException e) {
+                            LOG.info("Merging {} segments, {} ms elapsed.", writer.getMergingSegments().size(), System.currentTimeMillis() - startTime);
+                        }
+                    }
+                } finally {
+                    merger.shutdownNow();
+                }
+            }
+            Map<String, Long> segmentsAfter = getSegmentSizes(directory);
+            long bytesMerged = 0;
+            for (Map.Entry<String, Long> segment : segmentsBefore.entrySet()) {
+                if (!segmentsAfter.containsKey(segment.getKey())) {
+                    bytesMerged += segment.getValue();
+                }
+            }
+            LOG.info("Index has {} segments after optimization.", segmentsAfter.size());
+            LOG.info("Merged {} bytes.", bytesMerged);
             LOG.info("Optimizing time: {} ms",System.currentTimeMillis()-startTime);
+            LOG.info("CPU time of merges {} ms", mergeScheduler.getCpuTime());
+            LOG.info("user time of merges {} ms", mergeScheduler.getUserTime());
         } catch (IOException e) {
             LOG.error(e.getMessage());
+        } catch (ExecutionException e) {
+            LOG.error(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.error(e);
+        }
+    }
+
+    private void forceMerge(IndexWriter writer) throws IOException {
+        if (Settings.getOptimizeDeletesOnly()) {
+            LOG.info("Merging segments with deletions.");
+            writer.forceMergeDeletes(true);
+        } else {
+            LOG.info("Merging index to at most {} segments.", Settings.getOptimizeMaxSegments());
+            writer.forceMerge(Settings.getOptimizeMaxSegments(), true);
         }
     }
 
+    /**
+     * Concurrent merge scheduler summing CPU and user time of the threads
+     * running merges. Merge threads end when their merges do, so their time
+     * cannot be read from the live threads after the merge.
+     */
+    private static class TimedMergeScheduler extends ConcurrentMergeScheduler {
+
+        private final AtomicLong cpuTime = new AtomicLong();
+        private final AtomicLong userTime = new AtomicLong();
+
+        /**
+         * @param scheduler scheduler whose limits are kept, if it is a
+         * concurrent one
+         */
+        TimedMergeScheduler(MergeScheduler scheduler) {
+            if (scheduler instanceof ConcurrentMergeScheduler) {
+                ConcurrentMergeScheduler concurrent = (ConcurrentMergeScheduler) scheduler;
+                setMaxMergesAndThreads(concurrent.getMaxMergeCount(), concurrent.getMaxThreadCount());
+            }
+        }
+
+        @Override
+        protected void doMerge(MergePolicy.OneMerge merge) throws IOException {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (!bean.isCurrentThreadCpuTimeSupported()) {
+                super.doMerge(merge);
+                return;
+            }
+            long cpu = bean.getCurrentThreadCpuTime();
+            long user = bean.getCurrentThreadUserTime();
+            try {
+                super.doMerge(merge);
+            } finally {
+                cpuTime.addAndGet((bean.getCurrentThreadCpuTime() - cpu) / 1000000);
+                userTime.addAndGet((bean.getCurrentThreadUserTime() - user) / 1000000);
+            }
+        }
+
+        long getCpuTime() {
+            return cpuTime.get();
+        }
+
+        long getUserTime() {
+            return userTime.get();
+        }
+    }
+
+    private Map<String, Long> getSegmentSizes(Directory directory) throws IOException {
+        SegmentInfos segmentInfos = new SegmentInfos();
+        segmentInfos.read(directory);
+        Map<String, Long> result = new HashMap<>();
+        for (SegmentCommitInfo segmentCommitInfo : segmentInfos) {
+            result.put(segmentCommitInfo.info.name, segmentCommitInfo.sizeInBytes());
+        }
+        return result;
+    }
+
     /**
      * Deletes whole current index directory
      */
@@ -139,7 +331,9 @@ public class Indexing {
     }
 
     /**
-     * Deletes files located in given path from the index
+     * Deletes files located in given path from the index. Deleted files are
+     * dropped from the manifest, so the next run indexes them again if they
+     * are still present.
      *
      * @param path Path of the files to be deleted
      */
@@ -151,26 +345,40 @@ public class Indexing {
         }
         IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_31, analyzer);
         config.setIndexDeletionPolicy(new KeepOnlyLastCommitDeletionPolicy());
-        try(IndexWriter writer = new IndexWriter(FSDirectory.open(indexDirectory.toFile()), config)) { 
-            deleteDocs(writer, docDir);
+        try(IndexWriter writer = new IndexWriter(Settings.getDirectoryType().openWritable(indexDirectory), config)) { 
+            FileManifest manifest = FileManifest.open(Settings.getManifestFile());
+            deleteDocs(writer, docDir, manifest);
+            if (manifest != null) {
+                writer.commit();
+                manifest.save(false);
+            }
         } catch (IOException ex) {
             System.out.println(ex.getMessage());
         }
     }
 
-    private void deleteDocs(IndexWriter writer, File file) throws IOException {
+    private void deleteDocs(IndexWriter writer, File file, FileManifest manifest) throws IOException {
         if (file.canRead()) {
             if (file.isDirectory()) {
                 File[] files = file.listFiles();
                 if (files != null) {
                     for (File file1 : files)
                     {
-                        deleteDocs(writer, file1);
+                        deleteDocs(writer, file1, manifest);
                     }
                 }
             } else {
                 LOG.info("Deleting file {}.",file.getAbsoluteFile());
-                writer.deleteDocuments(new Term("path",resolvePath(file.toPath()).toString()));
+                String path;
+                if (manifest != null) {
+                    path = manifest.getRootPath().relativize(file.toPath().toAbsolutePath().normalize()).toString();
+                } else {
+                    path = resolvePath(file.toPath()).toString();
+                }
+                writer.deleteDocuments(new Term("path",path));
+                if (manifest != null) {
+                    manifest.remove(path);
+                }
             }
         }
     }
@@ -180,7 +388,7 @@ public class Indexing {
      */
     public void getStats() {
         String stats = "\nIndex statistics: \n\n";
-        try(DirectoryReader dr = DirectoryReader.open(FSDirectory.open(indexDirectory.toFile()))) {
+        try(DirectoryReader dr = DirectoryReader.open(Settings.getDirectoryType().open(indexDirectory))) {
             stats += "Index directory: "+indexDirectory + "\n";
             stats += "Number of indexed documents: " + dr.numDocs() + "\n";
             
@@ -208,7 +416,7 @@ public class Indexing {
         return storageDirectory.relativize(file);
     }
 
-    private long getCpuTime() {
+    static long getCpuTime() {
         ThreadMXBean bean = ManagementFactory.getThreadMXBean();
         long result = 0;
         if (bean.isThreadCpuTimeSupported()) {
@@ -220,7 +428,7 @@ public class Indexing {
         return result;
     }
     
-    private long getUserTime() {
+    static long getUserTime() {
         ThreadMXBean bean = ManagementFactory.getThreadMXBean();
         long result = 0;
         if (bean.isThreadCpuTimeSupported()) {
@@ -0,0 +1,117 @@
+package cz.muni.fi.mias.indexing;
+
+import cz.muni.fi.mias.Settings;
+import cz.muni.fi.mias.indexing.doc.DocumentSource;
+import cz.muni.fi.mias.indexing.doc.FileDocument;
+import cz.muni.fi.mias.indexing.doc.HtmlDocument;
+import cz.muni.fi.mias.indexing.doc.ZipEntryDocument;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexableField;
+
+/**
+ * Compares the single pass html document pipeline with the original one, where
+ * each document is parsed once for text extraction and once for each MathML
+ * variant. Documents are only processed and tokenized, nothing is written to
+ * the index.
+ */
+public class ParsingBenchmark {
+    private static final Logger LOG = LogManager.getLogger(ParsingBenchmark.class);
+    private final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:*{html,xhtml,zip}");
+    private final Path inputPath;
+    private final Path rootPath;
+
+    /**
+     * @param inputPath directory with documents used for benchmark
+     * @param rootDir root directory of the document storage
+     */
+    public ParsingBenchmark(String inputPath, String rootDir) {
+        this.inputPath = Paths.get(inputPath);
+        this.rootPath = Paths.get(rootDir);
+    }
+
+    /**
+     * Runs both pipelines over the input documents. The first round of each
+     * pipeline is a warm-up and is not reported.
+     */
+    public void run() {
+        List<Path> files;
+        try (Stream<Path> stream = Files.walk(inputPath)) {
+            files = stream.filter(p -> matcher.matches(p.getFileName())).collect(Collectors.toList());
+        } catch (IOException ex) {
+            LOG.fatal(ex);
+            return;
+        }
+        LOG.info("Benchmarking document parsing on {} files.", files.size());
+
+        for (boolean singlePass : new boolean[]{false, true}) {
+            process(files, singlePass);
+            long cpu = Indexing.getCpuTime();
+            long start = System.currentTimeMillis();
+            long tokens = process(files, singlePass);
+            LOG.info("{} pipeline: {} ms, CPU time {} ms, {} math tokens",
+                    singlePass ? "Single pass" : "Original", System.currentTimeMillis() - start,
+                    Indexing.getCpuTime() - cpu, tokens);
+        }
+    }
+
+    private long process(List<Path> files, boolean singlePass) {
+        long tokens = 0;
+        for (Path file : files) {
+            Path path = rootPath.relativize(file);
+            try {
+                if (file.getFileName().toString().endsWith("zip")) {
+                    try (ZipFile zipFile = new ZipFile(file.toFile())) {
+                        Enumeration<? extends ZipEntry> e = zipFile.entries();
+                        while (e.hasMoreElements()) {
+                            ZipEntry entry = e.nextElement();
+                            if (!entry.isDirectory()) {
+                                tokens += process(new ZipEntryDocument(zipFile, path, entry), singlePass);
+                            }
+                        }
+                    }
+                } else {
+                    tokens += process(new FileDocument(file, path), singlePass);
+                }
+            } catch (IOException ex) {
+                LOG.error("Cannot handle file {}", file);
+                LOG.error(ex);
+            }
+        }
+        return tokens;
+    }
+
+    private long process(DocumentSource source, boolean singlePass) throws IOException {
+        long tokens = 0;
+        for (Document document : new HtmlDocument(source, singlePass).getDocuments()) {
+            for (IndexableField field : document.getFields()) {
+                TokenStream tokenStream = ((Field) field).tokenStreamValue();
+                if (tokenStream != null) {
+                    tokenStream.reset();
+                    while (tokenStream.incrementToken()) {
+                        tokens++;
+                    }
+                    tokenStream.end();
+                    tokenStream.close();
+                }
+            }
+        }
+        return tokens;
+    }
+}
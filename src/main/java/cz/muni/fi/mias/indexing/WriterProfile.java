@@ -0,0 +1,110 @@
+package cz.muni.fi.mias.indexing;
+
+import cz.muni.fi.mias.Settings;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TieredMergePolicy;
+
+/**
+ * Tuning profiles of the index writer. Profile is selected by the
+ * WRITER_PROFILE property, see {@link Settings#getWriterProfile()}.
+ *
+ * @author Dominik Szalai - emptulik at gmail.com
+ */
+public enum WriterProfile
+{
+    /**
+     * Lucene defaults.
+     */
+    DEFAULT
+    {
+        @Override
+        void configure(IndexWriterConfig config, int cores)
+        {
+        }
+    },
+    /**
+     * Profile for building large index from scratch. Flushes are driven by a
+     * large RAM buffer only, merges are less frequent, wider and run on many
+     * threads, and segments are not packed into compound files.
+     */
+    BULK
+    {
+        @Override
+        void configure(IndexWriterConfig config, int cores)
+        {
+            config.setRAMBufferSizeMB(512);
+            config.setMaxBufferedDocs(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+            config.setUseCompoundFile(false);
+            config.setMaxThreadStates(Math.max(IndexWriterConfig.DEFAULT_MAX_THREAD_STATES, Settings.getNumThreads()));
+
+            TieredMergePolicy mergePolicy = new TieredMergePolicy();
+            mergePolicy.setSegmentsPerTier(30);
+            mergePolicy.setMaxMergeAtOnce(30);
+            mergePolicy.setNoCFSRatio(0);
+            config.setMergePolicy(mergePolicy);
+
+            int mergeThreads = Math.max(1, cores / 2);
+            ConcurrentMergeScheduler mergeScheduler = new ConcurrentMergeScheduler();
+            mergeScheduler.setMaxMergesAndThreads(mergeThreads + 4, mergeThreads);
+            config.setMergeScheduler(mergeScheduler);
+        }
+    },
+    /**
+     * Profile for adding or updating small amount of documents in existing
+     * index. Keeps the number of segments low and merges in background
+     * without competing with searches for many cores.
+     */
+    INCREMENTAL
+    {
+        @Override
+        void configure(IndexWriterConfig config, int cores)
+        {
+            config.setRAMBufferSizeMB(64);
+            config.setUseCompoundFile(true);
+
+            TieredMergePolicy mergePolicy = new TieredMergePolicy();
+            mergePolicy.setSegmentsPerTier(10);
+            config.setMergePolicy(mergePolicy);
+
+            int mergeThreads = Math.min(2, cores);
+            ConcurrentMergeScheduler mergeScheduler = new ConcurrentMergeScheduler();
+            mergeScheduler.setMaxMergesAndThreads(mergeThreads + 2, mergeThreads);
+            config.setMergeScheduler(mergeScheduler);
+        }
+    };
+
+    abstract void configure(IndexWriterConfig config, int cores);
+
+    /**
+     * Applies the profile and RAM_BUFFER_MB property, if set, to the given
+     * configuration.
+     *
+     * @param config configuration to be tuned
+     * @return the same configuration
+     */
+    public IndexWriterConfig apply(IndexWriterConfig config)
+    {
+        configure(config, Runtime.getRuntime().availableProcessors());
+        double ramBuffer = Settings.getRamBufferSize();
+        if (ramBuffer > 0)
+        {
+            config.setRAMBufferSizeMB(ramBuffer);
+        }
+        return config;
+    }
+
+    /**
+     * @param config configuration to be described
+     * @return human readable summary of the writer tuning
+     */
+    public String describe(IndexWriterConfig config)
+    {
+        return name() + " profile: RAM buffer " + config.getRAMBufferSizeMB() + " MB"
+                + ", max buffered docs " + config.getMaxBufferedDocs()
+                + ", compound files " + config.getUseCompoundFile()
+                + ", thread states " + config.getMaxThreadStates()
+                + ", merge policy " + config.getMergePolicy()
+                + ", merge scheduler " + config.getMergeScheduler();
+    }
+}
@@ -0,0 +1,64 @@
+package cz.muni.fi.mias.indexing.doc;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.lucene.document.Document;
+
+/**
+ * DocumentSource decorator that reads the underlying source only once. The
+ * content is kept in memory so every following call to {@link #resetStream()}
+ * is served from the buffer instead of reopening (and possibly decompressing)
+ * the original file.
+ *
+ * @author Dominik Szalai - emptulik at gmail.com
+ */
+public class BufferedDocumentSource implements DocumentSource
+{
+    private final DocumentSource source;
+    private byte[] content;
+
+    /**
+     * @param source source to be read and buffered on first access
+     */
+    public BufferedDocumentSource(DocumentSource source)
+    {
+        this.source = source;
+    }
+
+    @Override
+    public InputStream resetStream() throws IOException
+    {
+        return new ByteArrayInputStream(getContent());
+    }
+
+    /**
+     * @return whole content of the underlying source
+     * @throws IOException if the underlying source cannot be read
+     */
+    public byte[] getContent() throws IOException
+    {
+        if (content == null)
+        {
+            try (InputStream is = source.resetStream())
+            {
+                content = IOUtils.toByteArray(is);
+            }
+        }
+
+        return content;
+    }
+
+    @Override
+    public Document createDocument()
+    {
+        return source.createDocument();
+    }
+
+    @Override
+    public String getDocumentSourcePath()
+    {
+        return source.getDocumentSourcePath();
+    }
+}
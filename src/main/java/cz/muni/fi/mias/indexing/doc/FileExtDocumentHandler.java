@@ -31,45 +31,85 @@ public class FileExtDocumentHandler{
      * @return List<Lucene> of documents for the input files
      */
     public List<Document> getDocuments(Path file, Path path) {
-        String ext = path.getFileName().toString().substring(path.getFileName().toString().lastIndexOf(".") + 1);
         List<Document> result = new ArrayList<>();
-        List<MIaSDocument> miasDocuments = new ArrayList<>();
         try {
-            ZipFile zipFile;
-            if (ext.equals("zip")) {
-                zipFile = new ZipFile(file.toFile());
+            result = createDocuments(file, path);
+        } catch (IOException ex) {
+            LOG.error("Cannot handle file {}", file);
+            LOG.error(ex);
+        }
+        
+        return result;
+    }
+
+    /**
+     * Creates documents for the input file the same way as {@link #getDocuments(Path, Path)}, but failure is
+     * reported instead of returning an empty list, so it is not mistaken for a file without documents.
+     * @param file Input file to be handled.
+     * @param path Relative path to the file.
+     * @return List of Lucene documents for the input file
+     * @throws IOException if the file cannot be read
+     */
+    public List<Document> createDocuments(Path file, Path path) throws IOException {
+        List<Document> result = new ArrayList<>();
+        for (MIaSDocument doc : buildDocuments(file, path, false)) {
+            result.addAll(doc.getDocuments());
+        }
+        return result;
+    }
+
+    /**
+     * Creates documents for the input file the same way as {@link #getDocuments(Path, Path)}, but only reads their
+     * content into memory without processing it. Archive is closed afterwards, so the returned documents can be
+     * processed later by a different thread.
+     * @param file Input file to be handled.
+     * @param path Relative path to the file.
+     * @return List of documents with content loaded in memory.
+     * @throws IOException if the file cannot be read
+     */
+    public List<MIaSDocument> loadDocuments(Path file, Path path) throws IOException {
+        return buildDocuments(file, path, true);
+    }
+
+    private List<MIaSDocument> buildDocuments(Path file, Path path, boolean load) throws IOException {
+        String ext = path.getFileName().toString().substring(path.getFileName().toString().lastIndexOf(".") + 1);
+        List<MIaSDocument> miasDocuments = new ArrayList<>();
+        if (ext.equals("zip")) {
+            ZipFile zipFile = new ZipFile(file.toFile());
+            try {
                 Enumeration<? extends ZipEntry> e = zipFile.entries();
                 while (e.hasMoreElements()) {
                     ZipEntry entry = e.nextElement();
                     if (!entry.isDirectory()) {
-                        String name = entry.getName();
-                        int extEnd = name.lastIndexOf("#");
-                        if (extEnd < name.lastIndexOf(".")) {
-                            extEnd = name.length();
-                        }
-                        ext = name.substring(name.lastIndexOf(".") + 1, extEnd);
-                        MIaSDocument miasDocument = mIasDocumentFactory.buildDocument(ext, new ZipEntryDocument(zipFile, path, entry));
-                        if (miasDocument != null) {
-                            miasDocuments.add(miasDocument);
-                        }
+                        ext = MIasDocumentFactory.getExtension(entry.getName());
+                        addDocument(miasDocuments, ext, new ZipEntryDocument(zipFile, path, entry), load);
                     }
                 }
-            } else {
-                DocumentSource source = new FileDocument(file, path);
-                MIaSDocument miasDocument = mIasDocumentFactory.buildDocument(ext, source);
-                if (miasDocument!=null) {
-                    miasDocuments.add(miasDocument);
+            } finally {
+                if (load) {
+                    zipFile.close();
                 }
-            }            
-            for (MIaSDocument doc : miasDocuments) {
-                result.addAll(doc.getDocuments());
             }
-        } catch (IOException ex) {
-            LOG.error("Cannot handle file {}", file);
-            LOG.error(ex);
+        } else {
+            addDocument(miasDocuments, ext, new FileDocument(file, path), load);
+        }
+        return miasDocuments;
+    }
+
+    private void addDocument(List<MIaSDocument> miasDocuments, String ext, DocumentSource source, boolean load) throws IOException {
+        if (load) {
+            BufferedDocumentSource bufferedSource = new BufferedDocumentSource(source);
+            MIaSDocument miasDocument = mIasDocumentFactory.buildDocument(ext, bufferedSource);
+            if (miasDocument != null) {
+                bufferedSource.getContent();
+                miasDocuments.add(miasDocument);
+            }
+        } else {
+            MIaSDocument miasDocument = mIasDocumentFactory.buildDocument(ext, source);
+            if (miasDocument != null) {
+                miasDocuments.add(miasDocument);
+            }
         }
-        
-        return result;
     }
     
 }
@@ -1,14 +1,28 @@
 package cz.muni.fi.mias.indexing.doc;
 
+import cz.muni.fi.mias.FormulaOffsets;
+import cz.muni.fi.mias.MIaSUtils;
+import cz.muni.fi.mias.Settings;
 import cz.muni.fi.mias.math.MathTokenizer;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
+import java.util.zip.Deflater;
+import javax.xml.parsers.ParserConfigurationException;
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.document.CompressionTools;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
+import org.xml.sax.SAXException;
 
 /**
  *
@@ -17,16 +31,34 @@ import org.apache.lucene.document.TextField;
  * @author Martin Liska
  */
 public class HtmlDocument extends AbstractMIaSDocument {
-        
+    private static final Logger LOG = LogManager.getLogger(HtmlDocument.class);
+    private final boolean singlePass;
+
     public HtmlDocument(DocumentSource source) {
-        super(source);
+        this(source, Settings.getSinglePassParsing());
+    }
+
+    /**
+     * @param source Source of the document.
+     * @param singlePass If true, the source is read and parsed only once and both math tokenizers work with the
+     * formulae extracted from the parsed document. If false, the source is parsed separately for the text
+     * extraction and for each of the math tokenizers.
+     */
+    public HtmlDocument(DocumentSource source, boolean singlePass) {
+        super(singlePass && !(source instanceof BufferedDocumentSource) ? new BufferedDocumentSource(source) : source);
+        this.singlePass = singlePass;
     }
 
     @Override
     public List<Document> getDocuments() throws IOException {
         Document document = source.createDocument();
-        
-        HtmlDocumentExtractor htmldoc = new HtmlDocumentExtractor(source.resetStream());
+
+        HtmlDocumentExtractor htmldoc;
+        if (singlePass) {
+            htmldoc = new HtmlDocumentExtractor(parse());
+        } else {
+            htmldoc = new HtmlDocumentExtractor(source.resetStream());
+        }
 
         String arxivId = htmldoc.getArxivId();
         if (arxivId != null) {
@@ -49,18 +81,56 @@ public class HtmlDocument extends AbstractMIaSDocument {
             authorsField.setBoost(Float.parseFloat("10.0"));
             document.add(authorsField);
         }
-        
+
         String content = htmldoc.getBody();
         if (content != null) {
             document.add(new TextField("content", content, Field.Store.NO));
         }
 
-        InputStreamReader isr = new InputStreamReader(source.resetStream(), "UTF-8");
-        document.add(new TextField("pmath", new MathTokenizer(isr, true, MathTokenizer.MathMLType.PRESENTATION)));
-        isr = new InputStreamReader(source.resetStream(), "UTF-8");
-        document.add(new TextField("cmath", new MathTokenizer(isr, true, MathTokenizer.MathMLType.CONTENT)));
-        isr.close();
+        boolean storeSource = Settings.getStoreSnippetSource();
+        boolean storeOffsets = Settings.getStoreFormulaOffsets();
+        if (storeSource || storeOffsets) {
+            byte[] bytes = getContent();
+            if (storeSource) {
+                document.add(new StoredField("snippetsource", CompressionTools.compress(bytes, 0, bytes.length, Deflater.BEST_COMPRESSION)));
+            }
+            if (storeOffsets) {
+                document.add(new StoredField("formulaoffsets", FormulaOffsets.build(new String(bytes, StandardCharsets.UTF_8)).toBytes()));
+            }
+        }
+
+        if (singlePass) {
+            String mathDocument = htmldoc.getMathDocument();
+            if (mathDocument != null) {
+                document.add(new TextField("pmath", new MathTokenizer(new StringReader(mathDocument), true, MathTokenizer.MathMLType.PRESENTATION)));
+                document.add(new TextField("cmath", new MathTokenizer(new StringReader(mathDocument), true, MathTokenizer.MathMLType.CONTENT)));
+            }
+        } else {
+            InputStreamReader isr = new InputStreamReader(source.resetStream(), "UTF-8");
+            document.add(new TextField("pmath", new MathTokenizer(isr, true, MathTokenizer.MathMLType.PRESENTATION)));
+            isr = new InputStreamReader(source.resetStream(), "UTF-8");
+            document.add(new TextField("cmath", new MathTokenizer(isr, true, MathTokenizer.MathMLType.CONTENT)));
+            isr.close();
+        }
         return Arrays.asList(document);
     }
 
+    private byte[] getContent() throws IOException {
+        if (source instanceof BufferedDocumentSource) {
+            return ((BufferedDocumentSource) source).getContent();
+        }
+        try (InputStream is = source.resetStream()) {
+            return IOUtils.toByteArray(is);
+        }
+    }
+
+    private org.w3c.dom.Document parse() throws IOException {
+        try (InputStream is = source.resetStream()) {
+            return MIaSUtils.prepareDocumentBuilder().parse(is);
+        } catch (SAXException | ParserConfigurationException ex) {
+            LOG.fatal(ex);
+        }
+        return null;
+    }
+
 }
@@ -6,13 +6,21 @@
 package cz.muni.fi.mias.indexing.doc;
 
 import cz.muni.fi.mias.MIaSUtils;
+import cz.muni.fi.mias.Settings;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringWriter;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.w3c.dom.Element;
@@ -35,6 +43,15 @@ public class HtmlDocumentExtractor {
         parseDoc(is);
     }
 
+    /**
+     * @param document already parsed document, so it does not have to be parsed again
+     */
+    public HtmlDocumentExtractor(org.w3c.dom.Document document) {
+        if (document != null) {
+            rawDoc = document.getDocumentElement();
+        }
+    }
+
     public HtmlDocumentExtractor(File file) {
         try {
             parseDoc(new FileInputStream(file));
@@ -168,4 +185,39 @@ public class HtmlDocumentExtractor {
         return buffer.toString();
     }
 
+    /**
+     * Serializes all math elements of the document, in any namespace or none like in {@link FormulaDocument},
+     * into a new xhtml document containing only these formulae in their original order. Formula positions are
+     * therefore the same as in the original document, but the result is much smaller to tokenize than the whole
+     * input. The math tokenizers only read their input from a reader, so the formulae are passed to them
+     * serialized and the tokenizers parse just this document instead of the whole input.
+     *
+     * @return xhtml document with the math elements or null if the document contains no formulae
+     */
+    public String getMathDocument() {
+        if (rawDoc == null) {
+            return null;
+        }
+
+        NodeList maths = rawDoc.getElementsByTagNameNS("*", "math");
+        if (maths.getLength() == 0) {
+            return null;
+        }
+
+        StringWriter writer = new StringWriter();
+        writer.append(Settings.MATHDOCHEADER).append("<html>");
+        try {
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
+            for (int i = 0; i < maths.getLength(); i++) {
+                transformer.transform(new DOMSource(maths.item(i)), new StreamResult(writer));
+            }
+        } catch (TransformerException ex) {
+            LOG.fatal(ex);
+            return null;
+        }
+        writer.append("</html>");
+        return writer.toString();
+    }
+
 }
@@ -6,6 +6,8 @@
 package cz.muni.fi.mias.indexing.doc;
 
 import cz.muni.fi.mias.Settings;
+import cz.muni.fi.mias.indexing.ChangeDetector;
+import cz.muni.fi.mias.indexing.FileManifest;
 import cz.muni.fi.mias.indexing.scheduling.BackgroundProcessMonitor;
 import java.io.IOException;
 import java.nio.file.FileSystems;
@@ -14,10 +16,14 @@ import java.nio.file.FileVisitor;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
+ * Visitor passing files to be indexed to {@link BackgroundProcessMonitor}. The
+ * visitor is thread-safe, so it can be used by {@link ParallelFileWalker} as
+ * well.
  *
  * @author Dominik Szalai - emptulik at gmail.com
  */
@@ -27,13 +33,32 @@ public class MIaSFileVisitor implements FileVisitor<Path>
 
     private final BackgroundProcessMonitor fileProgressMonitor;
     private final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:*{html,xhtml,zip}");
-    private long docLimit = Settings.getDocLimit();;
-    private long processed = 0;
+    private final long docLimit = Settings.getDocLimit();
+    private final AtomicLong processed = new AtomicLong(0);
+    private volatile boolean limitReached = false;
+    private volatile boolean aborted = false;
     private final Path startPath;
+    private final ChangeDetector changeDetector;
+    private final FileManifest manifest;
     public MIaSFileVisitor(BackgroundProcessMonitor fileProgressMonitor, Path startPath)
+    {
+        this(fileProgressMonitor, startPath, null, null);
+    }
+
+    /**
+     * @param fileProgressMonitor monitor the matching files are passed to
+     * @param startPath directory where the walk starts
+     * @param changeDetector detector of files that do not have to be indexed,
+     * null if all matching files should be indexed
+     * @param manifest manifest the matching files are recorded to, files not
+     * changed since the previous run are skipped, null if not used
+     */
+    public MIaSFileVisitor(BackgroundProcessMonitor fileProgressMonitor, Path startPath, ChangeDetector changeDetector, FileManifest manifest)
     {
         this.startPath = startPath;
         this.fileProgressMonitor = fileProgressMonitor;
+        this.changeDetector = changeDetector;
+        this.manifest = manifest;
     }
 
     @Override
@@ -56,11 +81,35 @@ public class MIaSFileVisitor implements FileVisitor<Path>
     {
         if (canContinue())
         {
-            if (matcher.matches(file.getFileName()))
+            if (matcher.matches(file.getFileName()) && isIndexed(file, attrs))
+            {
+                LOG.debug("Skipping file {}, it is already indexed.", file);
+                return FileVisitResult.CONTINUE;
+            }
+            else if (matcher.matches(file.getFileName()))
             {
                 LOG.trace("Adding file {} to output list.", file);
-                fileProgressMonitor.getPaths().offer(file);
-                processed++;
+                if (!reserve())
+                {
+                    LOG.debug("Document number reached.");
+                    return FileVisitResult.TERMINATE;
+                }
+                try
+                {
+                    if (!fileProgressMonitor.put(file))
+                    {
+                        LOG.error("No worker is running, cannot index file {}.", file);
+                        aborted = true;
+                        return FileVisitResult.TERMINATE;
+                    }
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                    LOG.error("Interrupted while waiting for space in the queue.");
+                    aborted = true;
+                    return FileVisitResult.TERMINATE;
+                }
                 return FileVisitResult.CONTINUE;
             }
             else
@@ -86,23 +135,72 @@ public class MIaSFileVisitor implements FileVisitor<Path>
     @Override
     public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException
     {
-        if(dir.equals(this.startPath))
-        {
-            fileProgressMonitor.setDoneLoading(true);
-        }
-        // TODO when we leave directory check if its the one that was passed
-        // as constructor then set monitor to done.
         LOG.trace("Exiting directory {}", dir);
         return FileVisitResult.CONTINUE;
     }
     
+    /**
+     * @return true if the walk was not stopped by reaching the document limit
+     * or because the files could not be passed to the workers
+     */
+    public boolean isComplete()
+    {
+        return !limitReached && !aborted;
+    }
+
+    private boolean isIndexed(Path file, BasicFileAttributes attrs)
+    {
+        boolean unchanged = manifest != null && manifest.record(file, attrs);
+        if (!unchanged && changeDetector != null && changeDetector.shouldSkip(file, attrs))
+        {
+            if (manifest != null)
+            {
+                manifest.indexed(file);
+            }
+            return true;
+        }
+        return unchanged;
+    }
+
     private boolean canContinue()
     {
+        if (aborted)
+        {
+            return false;
+        }
         if(docLimit == -1)
         {
             return true;
         }
         
-        return processed <= docLimit;
+        if (processed.get() < docLimit)
+        {
+            return true;
+        }
+        limitReached = true;
+        return false;
+    }
+
+    /**
+     * Counts file passed to the workers. Check and increment are one atomic
+     * step, so walker threads of {@link ParallelFileWalker} cannot pass more
+     * files than the limit together.
+     *
+     * @return false if the document limit is reached and the file must not be
+     * passed
+     */
+    private boolean reserve()
+    {
+        if (docLimit == -1)
+        {
+            processed.incrementAndGet();
+            return true;
+        }
+        if (processed.getAndIncrement() < docLimit)
+        {
+            return true;
+        }
+        limitReached = true;
+        return false;
     }
 }
@@ -39,6 +39,29 @@ public class MIasDocumentFactory
         }
     }
 
+    /**
+     * @param fileExtension extension of the file or zip entry
+     * @return true if a document is built for files with the extension
+     */
+    public boolean isIndexed(String fileExtension)
+    {
+        return Settings.getIndexFormulaeDocuments() || availableExtensions.contains(fileExtension);
+    }
+
+    /**
+     * @param name name of the file or zip entry
+     * @return extension of the name, fragment after # is not part of it
+     */
+    public static String getExtension(String name)
+    {
+        int extEnd = name.lastIndexOf("#");
+        if (extEnd < name.lastIndexOf("."))
+        {
+            extEnd = name.length();
+        }
+        return name.substring(name.lastIndexOf(".") + 1, extEnd);
+    }
+
     public void setAvailableExtensions(Set<String> availableExtensions)
     {
         this.availableExtensions = availableExtensions;
@@ -0,0 +1,152 @@
+package cz.muni.fi.mias.indexing.doc;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Walks file tree the same way as {@link Files#walkFileTree(Path, FileVisitor)}
+ * but visits subdirectories in parallel using fork-join pool. Visitor therefore
+ * has to be thread-safe and files are not visited in any particular order.
+ * Symbolic links are not followed. Walk is stopped when the visitor returns
+ * {@link FileVisitResult#TERMINATE}.
+ *
+ * @author Dominik Szalai - emptulik at gmail.com
+ */
+public class ParallelFileWalker
+{
+    private static final Logger LOG = LogManager.getLogger(ParallelFileWalker.class);
+    private final FileVisitor<Path> visitor;
+    private final int threads;
+    private volatile boolean terminated = false;
+
+    /**
+     * @param visitor thread-safe visitor
+     * @param threads number of threads walking the tree
+     */
+    public ParallelFileWalker(FileVisitor<Path> visitor, int threads)
+    {
+        this.visitor = visitor;
+        this.threads = threads;
+    }
+
+    /**
+     * Walks the tree rooted at given path and waits until the walk is done.
+     *
+     * @param start starting path, can be a single file as well
+     * @throws IOException if the starting path cannot be read
+     */
+    public void walk(Path start) throws IOException
+    {
+        BasicFileAttributes attrs = Files.readAttributes(start, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (!attrs.isDirectory())
+        {
+            visitor.visitFile(start, attrs);
+            return;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try
+        {
+            pool.invoke(new DirectoryTask(start, attrs));
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    private void check(FileVisitResult result)
+    {
+        if (result == FileVisitResult.TERMINATE)
+        {
+            terminated = true;
+        }
+    }
+
+    private class DirectoryTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+        private final Path dir;
+        private final BasicFileAttributes attrs;
+
+        DirectoryTask(Path dir, BasicFileAttributes attrs)
+        {
+            this.dir = dir;
+            this.attrs = attrs;
+        }
+
+        @Override
+        protected void compute()
+        {
+            try
+            {
+                FileVisitResult result = visitor.preVisitDirectory(dir, attrs);
+                if (result != FileVisitResult.CONTINUE)
+                {
+                    check(result);
+                    return;
+                }
+
+                List<DirectoryTask> subtasks = new ArrayList<>();
+                IOException failure = null;
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir))
+                {
+                    for (Path entry : stream)
+                    {
+                        if (terminated)
+                        {
+                            return;
+                        }
+
+                        BasicFileAttributes entryAttrs;
+                        try
+                        {
+                            entryAttrs = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                        }
+                        catch (IOException ex)
+                        {
+                            check(visitor.visitFileFailed(entry, ex));
+                            continue;
+                        }
+
+                        if (entryAttrs.isDirectory())
+                        {
+                            subtasks.add(new DirectoryTask(entry, entryAttrs));
+                        }
+                        else
+                        {
+                            check(visitor.visitFile(entry, entryAttrs));
+                        }
+                    }
+                }
+                catch (IOException ex)
+                {
+                    failure = ex;
+                }
+
+                invokeAll(subtasks);
+                if (!terminated)
+                {
+                    check(visitor.postVisitDirectory(dir, failure));
+                }
+            }
+            catch (IOException ex)
+            {
+                LOG.error("Cannot walk directory {}", dir);
+                LOG.error(ex);
+            }
+        }
+    }
+}
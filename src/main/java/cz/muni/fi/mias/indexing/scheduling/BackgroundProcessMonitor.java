@@ -5,45 +5,163 @@
  */
 package cz.muni.fi.mias.indexing.scheduling;
 
+import cz.muni.fi.mias.Settings;
 import cz.muni.fi.mias.indexing.doc.MIaSFileVisitor;
 import java.nio.file.Path;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.file.Paths;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
  * Class is used to hold results of {@link MIaSFileVisitor} class by
- * encapsulating access to {@link ConcurrentLinkedQueue}. Also holds flag
- * whether file reading is done or not.
+ * encapsulating access to bounded {@link BlockingQueue}. Producer is blocked
+ * when the queue is full so it cannot run ahead of the workers, and workers are
+ * parked while the queue is empty. End of the input is signalled by a poison
+ * pill, which is passed from worker to worker so each of them terminates.
+ * Workers can register as consumers, producer then stops waiting for space in
+ * the queue once all registered consumers are gone, so indexing does not hang
+ * when the workers die.
  *
  * @author Dominik Szalai - emptulik at gmail.com
  */
-public class BackgroundProcessMonitor
+public class BackgroundProcessMonitor implements PipelineStage.Source<Path>
 {
-    private final Queue<Path> paths = new ConcurrentLinkedQueue<>();
-    private boolean doneLoading = false;
+    private static final Logger LOG = LogManager.getLogger(BackgroundProcessMonitor.class);
+    private static final Path POISON_PILL = Paths.get("");
+    private static final long OFFER_TIMEOUT = 1;
+    private final BlockingQueue<Path> paths;
+    private final AtomicInteger consumers = new AtomicInteger(0);
+    private volatile boolean consumersRegistered = false;
+    private volatile boolean doneLoading = false;
     private AtomicLong docsDone = new AtomicLong(0);
 
+    /**
+     * Creates monitor with queue capacity taken from
+     * {@link Settings#getQueueCapacity()}.
+     */
+    public BackgroundProcessMonitor()
+    {
+        this(Settings.getQueueCapacity());
+    }
+
+    /**
+     * @param capacity maximal number of paths waiting for processing
+     */
+    public BackgroundProcessMonitor(int capacity)
+    {
+        this.paths = new ArrayBlockingQueue<>(capacity);
+    }
+
     public boolean isDoneLoading()
     {
         return doneLoading;
     }
 
-    public void setDoneLoading(boolean doneLoading)
+    /**
+     * Signals that no more paths will be added. Workers finish after the
+     * remaining paths are processed. Calling this method more than once has no
+     * effect.
+     *
+     * @throws InterruptedException if interrupted while waiting for space in
+     * the queue
+     */
+    public synchronized void finishLoading() throws InterruptedException
+    {
+        if (!doneLoading)
+        {
+            doneLoading = true;
+            if (!offer(POISON_PILL))
+            {
+                LOG.error("No worker is running, {} paths were not processed.", paths.size());
+            }
+        }
+    }
+
+    /**
+     * Adds path to the queue, waiting if necessary for space to become
+     * available.
+     *
+     * @param path path to be processed
+     * @return false if the path was not added because all registered
+     * consumers are gone
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean put(Path path) throws InterruptedException
+    {
+        return offer(path);
+    }
+
+    private boolean offer(Path path) throws InterruptedException
     {
-        this.doneLoading = doneLoading;
+        while (!paths.offer(path, OFFER_TIMEOUT, TimeUnit.SECONDS))
+        {
+            if (consumersRegistered && consumers.get() <= 0)
+            {
+                return false;
+            }
+        }
+        return true;
     }
 
-    public Queue<Path> getPaths()
+    /**
+     * Registers consumer taking paths from the queue. Has to be called before
+     * the consumer is started.
+     */
+    @Override
+    public void addConsumer()
     {
-        return paths;
+        consumers.incrementAndGet();
+        consumersRegistered = true;
+    }
+
+    /**
+     * Unregisters consumer, has to be called when the consumer terminates for
+     * any reason.
+     */
+    @Override
+    public void removeConsumer()
+    {
+        consumers.decrementAndGet();
+    }
+
+    /**
+     * Retrieves next path to process, waiting if necessary until one is
+     * available.
+     *
+     * @return next path or null if loading is done and there are no more paths
+     * @throws InterruptedException if interrupted while waiting
+     */
+    @Override
+    public Path take() throws InterruptedException
+    {
+        Path path = paths.take();
+        if (path == POISON_PILL)
+        {
+            paths.put(POISON_PILL);
+            return null;
+        }
+
+        return path;
+    }
+
+    /**
+     * @return number of paths waiting for processing
+     */
+    public int getQueueSize()
+    {
+        return paths.size();
     }
 
     public AtomicLong getDocsDone()
     {
         return docsDone;
     }
-    
+
     public void docDoneIncrease()
     {
         docsDone.incrementAndGet();
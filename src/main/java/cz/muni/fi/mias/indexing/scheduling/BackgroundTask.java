@@ -6,14 +6,13 @@
 package cz.muni.fi.mias.indexing.scheduling;
 
 import cz.muni.fi.mias.indexing.doc.FileExtDocumentHandler;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.util.List;
 import java.util.concurrent.Callable;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.lucene.document.Document;
-import org.apache.lucene.index.IndexWriter;
-import org.apache.lucene.index.Term;
 
 /**
  * Class is used to extract and index documents in background thread. To do so
@@ -28,14 +27,14 @@ public class BackgroundTask implements Callable<Long>
 {
     private static final Logger LOG = LogManager.getLogger(BackgroundTask.class);
     private final BackgroundProcessMonitor fileProgressMonitor;
-    private final IndexWriter indexWriter;
+    private final DocumentBatchWriter documentWriter;
     private FileExtDocumentHandler fileExtDocumentHandler;
     private Path rootPath;
 
-    public BackgroundTask(BackgroundProcessMonitor fileProgressMonitor, IndexWriter indexWriter, FileExtDocumentHandler fileExtDocumentHandler,Path rootPath)
+    public BackgroundTask(BackgroundProcessMonitor fileProgressMonitor, DocumentBatchWriter documentWriter, FileExtDocumentHandler fileExtDocumentHandler,Path rootPath)
     {
         this.fileProgressMonitor = fileProgressMonitor;
-        this.indexWriter = indexWriter;
+        this.documentWriter = documentWriter;
         this.fileExtDocumentHandler = fileExtDocumentHandler;
         this.rootPath = rootPath;
     }
@@ -46,25 +45,31 @@ public class BackgroundTask implements Callable<Long>
         long start = System.currentTimeMillis();
         LOG.debug("Thread started at system time {}.",start);
 
-        while (!fileProgressMonitor.isDoneLoading() || !fileProgressMonitor.getPaths().isEmpty())
+        Path path;
+        try
         {
-            Path path = fileProgressMonitor.getPaths().poll();
-            if (path == null)
-            {
-                LOG.trace("Path queue is empty");
-            }
-            else
+            while ((path = fileProgressMonitor.take()) != null)
             {
                 LOG.info("Fetched following path {}",path);
-                
-                List<Document> documents = fileExtDocumentHandler.getDocuments(path, rootPath.relativize(path));
-                
-                for(Document doc : documents)
+
+                try
+                {
+                    Path relativePath = rootPath.relativize(path);
+                    List<Document> documents = fileExtDocumentHandler.createDocuments(path, relativePath);
+
+                    documentWriter.write(relativePath.toString(), documents);
+                }
+                catch (IOException | RuntimeException ex)
                 {
-                    indexWriter.updateDocument(new Term("id", doc.get("id")), doc);
+                    LOG.error("Cannot index file {}", path);
+                    LOG.error(ex);
                 }
             }
         }
+        finally
+        {
+            fileProgressMonitor.removeConsumer();
+        }
 
         return System.currentTimeMillis() - start;
     }
@@ -15,7 +15,6 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import org.apache.lucene.index.IndexWriter;
 
 /**
  *
@@ -24,9 +23,10 @@ import org.apache.lucene.index.IndexWriter;
 public class BackgroundTaskHandler
 {
     private final BackgroundProcessMonitor fileProgressMonitor;
-    private final ExecutorService executorService = Executors.newFixedThreadPool(Settings.getNumThreads() - 1);
-    private final List<Future<Long>> tasks = new ArrayList<>(Settings.getNumThreads() - 1);
-    private final IndexWriter indexWriter;
+    private final int numThreads = Math.max(1, Settings.getNumThreads() - 1);
+    private final ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
+    private final List<Future<Long>> tasks = new ArrayList<>(numThreads);
+    private final DocumentBatchWriter documentWriter;
     private Long max = Long.valueOf(0);
     private Path rootPath;
     private FileExtDocumentHandler fileExtDocumentHandler = new FileExtDocumentHandler();
@@ -35,50 +35,74 @@ public class BackgroundTaskHandler
      * Default and the only constructor for BackgroundTaskHandler class.
      *
      * @param fileProgressMonitor monitor holding queue of paths
-     * @param indexWriter index writer to be written into
+     * @param documentWriter writer submitting documents to the index
      * @param rootPath 
      */
-    public BackgroundTaskHandler(BackgroundProcessMonitor fileProgressMonitor, IndexWriter indexWriter, Path rootPath)
+    public BackgroundTaskHandler(BackgroundProcessMonitor fileProgressMonitor, DocumentBatchWriter documentWriter, Path rootPath)
     {
         this.fileProgressMonitor = fileProgressMonitor;
-        this.indexWriter = indexWriter;
+        this.documentWriter = documentWriter;
         this.rootPath = rootPath;
     }
 
     /**
      * Executing this method creates {@link Settings#getNumThreads() } -1
-     * threads. One thread is left for main method, so it does not have to swap
-     * with one of these threads.
+     * threads (at least one). One thread is left for main method, so it does
+     * not have to swap with one of these threads.
      */
     public void initThreads()
     {
-        for (int i = 0; i < Settings.getNumThreads(); i++)
+        for (int i = 0; i < numThreads; i++)
         {
-            tasks.add(executorService.submit(new BackgroundTask(fileProgressMonitor, indexWriter,fileExtDocumentHandler,rootPath)));
+            fileProgressMonitor.addConsumer();
+            tasks.add(executorService.submit(new BackgroundTask(fileProgressMonitor, documentWriter,fileExtDocumentHandler,rootPath)));
         }
     }
 
     /**
      * Method initializes shutdown of threads created by {@link #initThreads() }
-     * method. Method during shutdown also calculates longest running thread.
+     * method and waits until all of them finish. Has to be called after
+     * {@link BackgroundProcessMonitor#finishLoading()}, otherwise it blocks
+     * forever. Method during shutdown also calculates longest running thread.
+     * All threads are waited for even if some of them failed, so none of them
+     * is still writing when the index writer is closed.
      *
-     * @throws ExecutionException if any error during shutdown occurs
-     * @throws InterruptedException if any error during shutdown occurs
+     * @throws ExecutionException first failure of the threads, thrown after
+     * all of them finish
+     * @throws InterruptedException if interrupted while waiting
      */
     public void shutdown() throws ExecutionException, InterruptedException
     {
-        Iterator<Future<Long>> iterator = tasks.iterator();
-
-        while (iterator.hasNext())
+        ExecutionException failure = null;
+        try
         {
-            if (iterator.next().isDone())
+            Iterator<Future<Long>> iterator = tasks.iterator();
+
+            while (iterator.hasNext())
             {
-                max = Math.max(max, iterator.next().get());
+                try
+                {
+                    max = Math.max(max, iterator.next().get());
+                }
+                catch (ExecutionException ex)
+                {
+                    if (failure == null)
+                    {
+                        failure = ex;
+                    }
+                }
                 iterator.remove();
             }
         }
+        finally
+        {
+            executorService.shutdown();
+        }
 
-        executorService.shutdown();
+        if (failure != null)
+        {
+            throw failure;
+        }
     }
 
     /**
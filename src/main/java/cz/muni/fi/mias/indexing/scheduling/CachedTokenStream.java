@@ -0,0 +1,68 @@
+package cz.muni.fi.mias.indexing.scheduling;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import org.apache.lucene.analysis.TokenStream;
+
+/**
+ * Token stream replaying tokens of another stream, which is consumed and closed
+ * when this stream is created. Unlike
+ * {@link org.apache.lucene.analysis.CachingTokenFilter} the replayed tokens are
+ * held in copies of the attributes, so the original stream, which analyzers
+ * reuse for the next field analyzed by the same thread, can be used again
+ * while the cached tokens wait for the index writer in another thread.
+ */
+class CachedTokenStream extends TokenStream
+{
+    private final List<State> states = new ArrayList<>();
+    private final State finalState;
+    private Iterator<State> iterator;
+
+    /**
+     * @param input stream to be consumed
+     * @throws IOException if the input fails
+     */
+    CachedTokenStream(TokenStream input) throws IOException
+    {
+        super(input.cloneAttributes());
+        try
+        {
+            input.reset();
+            while (input.incrementToken())
+            {
+                states.add(input.captureState());
+            }
+            input.end();
+            finalState = input.captureState();
+        }
+        finally
+        {
+            input.close();
+        }
+    }
+
+    @Override
+    public boolean incrementToken()
+    {
+        if (!iterator.hasNext())
+        {
+            return false;
+        }
+        restoreState(iterator.next());
+        return true;
+    }
+
+    @Override
+    public void end()
+    {
+        restoreState(finalState);
+    }
+
+    @Override
+    public void reset()
+    {
+        iterator = states.iterator();
+    }
+}
@@ -0,0 +1,212 @@
+package cz.muni.fi.mias.indexing.scheduling;
+
+import cz.muni.fi.mias.indexing.FileManifest;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+
+/**
+ * Submits documents created from a single file to the {@link IndexWriter}.
+ * Depending on the mode, documents are either updated one by one using their
+ * id, added as one block without any delete term, or updated as one block
+ * replacing all documents with the same path. Tracks latency of submitted
+ * batches. Paths of written documents are confirmed in the manifest if given.
+ *
+ * @author Dominik Szalai - emptulik at gmail.com
+ */
+public class DocumentBatchWriter
+{
+    private static final Logger LOG = LogManager.getLogger(DocumentBatchWriter.class);
+
+    /**
+     * Way documents are submitted to the writer.
+     */
+    public enum Mode
+    {
+        /**
+         * Each document is updated separately using its id.
+         */
+        UPDATE_EACH,
+        /**
+         * Documents of one file are added as one block, used for fresh index
+         * where there is nothing to delete. Documents are not deduplicated by
+         * id, so the same document (e.g. the same arXiv paper) found in two
+         * input files is indexed twice.
+         */
+        ADD_BLOCK,
+        /**
+         * Documents of one file are added as one block replacing all documents
+         * previously indexed from the same path.
+         */
+        UPDATE_BLOCK
+    }
+
+    private final IndexWriter indexWriter;
+    private final Mode mode;
+    private final FileManifest manifest;
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong documents = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * @param indexWriter index writer to be written into
+     * @param mode way documents are submitted to the writer
+     */
+    public DocumentBatchWriter(IndexWriter indexWriter, Mode mode)
+    {
+        this(indexWriter, mode, null);
+    }
+
+    /**
+     * @param indexWriter index writer to be written into
+     * @param mode way documents are submitted to the writer
+     * @param manifest manifest the files are confirmed in once their documents
+     * are written, null if not used
+     */
+    public DocumentBatchWriter(IndexWriter indexWriter, Mode mode, FileManifest manifest)
+    {
+        this.indexWriter = indexWriter;
+        this.mode = mode;
+        this.manifest = manifest;
+    }
+
+    /**
+     * Writes documents created from a single file.
+     *
+     * @param docs documents of a single file
+     * @throws IOException if the writer fails
+     */
+    public void write(List<Document> docs) throws IOException
+    {
+        write(null, docs);
+    }
+
+    /**
+     * Writes documents created from a single file. If the file yields no
+     * documents in {@link Mode#UPDATE_BLOCK} mode, documents previously
+     * indexed from it are deleted.
+     *
+     * @param path path of the file relative to the root path, as stored in the
+     * path field of its documents, null if not known
+     * @param docs documents of the file
+     * @throws IOException if the writer fails
+     */
+    public void write(String path, List<Document> docs) throws IOException
+    {
+        if (docs.isEmpty())
+        {
+            if (mode == Mode.UPDATE_BLOCK && path != null)
+            {
+                indexWriter.deleteDocuments(new Term("path", path));
+                LOG.debug("File {} yields no documents, its previous documents were deleted.", path);
+            }
+            return;
+        }
+
+        long start = System.nanoTime();
+        switch (mode)
+        {
+            case ADD_BLOCK:
+                indexWriter.addDocuments(docs);
+                break;
+            case UPDATE_BLOCK:
+                String docsPath = docs.get(0).get("path");
+                if (docsPath != null && samePath(docs, docsPath))
+                {
+                    indexWriter.updateDocuments(new Term("path", docsPath), docs);
+                    break;
+                }
+                // documents from different paths, fall back to updates by id
+            default:
+                for (Document doc : docs)
+                {
+                    indexWriter.updateDocument(new Term("id", doc.get("id")), doc);
+                }
+        }
+        long time = System.nanoTime() - start;
+        if (manifest != null)
+        {
+            for (Document doc : docs)
+            {
+                String docPath = doc.get("path");
+                if (docPath != null)
+                {
+                    manifest.indexed(docPath);
+                }
+            }
+        }
+
+        batches.incrementAndGet();
+        documents.addAndGet(docs.size());
+        totalNanos.addAndGet(time);
+        maxNanos.accumulateAndGet(time, Math::max);
+        LOG.debug("Batch of {} documents written in {} ms.", docs.size(), time / 1000000);
+    }
+
+    private boolean samePath(List<Document> docs, String path)
+    {
+        for (Document doc : docs)
+        {
+            if (!path.equals(doc.get("path")))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return analyzer of the index writer, for analyzing documents before
+     * they are written
+     */
+    public Analyzer getAnalyzer()
+    {
+        return indexWriter.getAnalyzer();
+    }
+
+    public Mode getMode()
+    {
+        return mode;
+    }
+
+    public long getBatches()
+    {
+        return batches.get();
+    }
+
+    public long getDocuments()
+    {
+        return documents.get();
+    }
+
+    /**
+     * @return average batch latency in milliseconds
+     */
+    public double getAverageLatency()
+    {
+        long n = batches.get();
+        return n == 0 ? 0 : totalNanos.get() / 1000000.0 / n;
+    }
+
+    /**
+     * @return maximal batch latency in milliseconds
+     */
+    public double getMaxLatency()
+    {
+        return maxNanos.get() / 1000000.0;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s: %d batches, %d documents, average latency %.2f ms, max latency %.2f ms",
+                mode, getBatches(), getDocuments(), getAverageLatency(), getMaxLatency());
+    }
+}
@@ -0,0 +1,183 @@
+package cz.muni.fi.mias.indexing.scheduling;
+
+import cz.muni.fi.mias.Settings;
+import cz.muni.fi.mias.indexing.doc.FileExtDocumentHandler;
+import cz.muni.fi.mias.indexing.doc.MIaSDocument;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexableField;
+
+/**
+ * Indexing pipeline with three separately sized stages connected by bounded
+ * queues:
+ * <ul>
+ * <li>load: reads (and decompresses) files taken from
+ * {@link BackgroundProcessMonitor} into memory</li>
+ * <li>analysis: parses documents and runs math tokenizers and the analyzer of
+ * the index writer on all indexed fields, so the resulting Lucene documents
+ * only replay cached tokens when they are added</li>
+ * <li>write: submits the documents of each file as one batch using
+ * {@link DocumentBatchWriter}</li>
+ * </ul>
+ * Statistics of all stages are logged periodically and when the pipeline is
+ * shut down.
+ *
+ * @author Dominik Szalai - emptulik at gmail.com
+ */
+public class IndexingPipeline
+{
+    private static final Logger LOG = LogManager.getLogger(IndexingPipeline.class);
+    private static final long REPORT_INTERVAL = 30;
+    private final FileExtDocumentHandler fileExtDocumentHandler = new FileExtDocumentHandler();
+    private final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "pipeline-reporter");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final DocumentBatchWriter documentWriter;
+    private final Path rootPath;
+    private final List<PipelineStage<?, ?>> stages;
+
+    /**
+     * @param fileProgressMonitor monitor holding queue of paths
+     * @param documentWriter writer submitting documents to the index
+     * @param rootPath root directory of the document storage
+     */
+    public IndexingPipeline(BackgroundProcessMonitor fileProgressMonitor, DocumentBatchWriter documentWriter, Path rootPath)
+    {
+        this.documentWriter = documentWriter;
+        this.rootPath = rootPath;
+
+        int capacity = Settings.getPipelineQueueCapacity();
+        StageQueue<FileDocuments<MIaSDocument>> loaded = new StageQueue<>(capacity);
+        StageQueue<FileDocuments<Document>> analyzed = new StageQueue<>(capacity);
+
+        this.stages = Arrays.asList(
+                new PipelineStage<>("load", Settings.getPipelineLoadThreads(),
+                        fileProgressMonitor, fileProgressMonitor::getQueueSize, loaded, this::load),
+                new PipelineStage<>("analysis", Settings.getPipelineAnalysisThreads(),
+                        loaded, loaded::size, analyzed, this::analyze),
+                new PipelineStage<FileDocuments<Document>, Void>("write", Settings.getPipelineWriterThreads(),
+                        analyzed, analyzed::size, null, file -> {
+                            documentWriter.write(file.path, file.documents);
+                            return null;
+                        }));
+    }
+
+    /**
+     * Starts all stages of the pipeline.
+     */
+    public void start()
+    {
+        for (PipelineStage<?, ?> stage : stages)
+        {
+            LOG.info("Starting stage {} with {} threads.", stage.getName(), stage.getThreads());
+            stage.start();
+        }
+        reporter.scheduleAtFixedRate(this::logStatistics, REPORT_INTERVAL, REPORT_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Waits until all stages finish and stops the statistics reporter, also
+     * when interrupted. Has to be called after
+     * {@link BackgroundProcessMonitor#finishLoading()}, otherwise it blocks
+     * forever.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void shutdown() throws InterruptedException
+    {
+        try
+        {
+            for (PipelineStage<?, ?> stage : stages)
+            {
+                stage.awaitTermination();
+            }
+        }
+        finally
+        {
+            reporter.shutdownNow();
+        }
+        logStatistics();
+    }
+
+    /**
+     * @return stages of the pipeline in order of processing
+     */
+    public List<PipelineStage<?, ?>> getStages()
+    {
+        return stages;
+    }
+
+    private void logStatistics()
+    {
+        for (PipelineStage<?, ?> stage : stages)
+        {
+            LOG.info(stage);
+        }
+    }
+
+    private FileDocuments<MIaSDocument> load(Path path) throws IOException
+    {
+        LOG.info("Fetched following path {}", path);
+        Path relativePath = rootPath.relativize(path);
+        return new FileDocuments<>(relativePath.toString(), fileExtDocumentHandler.loadDocuments(path, relativePath));
+    }
+
+    private FileDocuments<Document> analyze(FileDocuments<MIaSDocument> file) throws IOException
+    {
+        Analyzer analyzer = documentWriter.getAnalyzer();
+        List<Document> result = new ArrayList<>();
+        for (MIaSDocument miasDocument : file.documents)
+        {
+            for (Document document : miasDocument.getDocuments())
+            {
+                for (IndexableField field : document.getFields())
+                {
+                    if (field.fieldType().indexed() && field.fieldType().tokenized() && field instanceof Field
+                            && ((Field) field).numericValue() == null)
+                    {
+                        // consume the tokenizer now, writer only replays cached tokens
+                        ((Field) field).setTokenStream(new CachedTokenStream(field.tokenStream(analyzer, null)));
+                    }
+                }
+                result.add(document);
+            }
+        }
+        return new FileDocuments<>(file.path, result);
+    }
+
+    /**
+     * Documents of one file passed between the stages together with the
+     * relative path of the file, so the writer knows the file even if it
+     * yields no documents.
+     */
+    private static class FileDocuments<T>
+    {
+        private final String path;
+        private final List<T> documents;
+
+        FileDocuments(String path, List<T> documents)
+        {
+            this.path = path;
+            this.documents = documents;
+        }
+
+        @Override
+        public String toString()
+        {
+            return path;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package cz.muni.fi.mias.indexing.scheduling;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Single stage of {@link IndexingPipeline}. Stage runs given number of threads,
+ * each of them takes items from the input, processes them and passes results
+ * to the output queue. When the input is exhausted and all threads of the stage
+ * are finished, the output queue is finished as well, so the next stage
+ * terminates too. Threads of the stage are registered as consumers of the
+ * input, so when all of them die the producer stops waiting for them instead of
+ * blocking forever. Stage tracks number of processed and failed items and time
+ * spent processing them.
+ *
+ * @param <I> type of input items
+ * @param <O> type of output items
+ * @author Dominik Szalai - emptulik at gmail.com
+ */
+public class PipelineStage<I, O>
+{
+    private static final Logger LOG = LogManager.getLogger(PipelineStage.class);
+
+    /**
+     * Input of the stage.
+     *
+     * @param <T> type of the items
+     */
+    public interface Source<T>
+    {
+        /**
+         * @return next item or null if there are no more items
+         * @throws InterruptedException if interrupted while waiting
+         */
+        T take() throws InterruptedException;
+
+        /**
+         * Registers thread taking items, called before the thread is started.
+         */
+        default void addConsumer()
+        {
+        }
+
+        /**
+         * Unregisters thread taking items, called when the thread terminates
+         * for any reason, so producers do not wait for it forever.
+         */
+        default void removeConsumer()
+        {
+        }
+    }
+
+    /**
+     * Work done by the stage for single item.
+     *
+     * @param <I> type of input items
+     * @param <O> type of output items
+     */
+    public interface Processor<I, O>
+    {
+        /**
+         * @param item item to be processed
+         * @return result passed to the next stage, null if there is nothing to
+         * pass
+         * @throws Exception if processing fails, item is counted as failed
+         */
+        O process(I item) throws Exception;
+    }
+
+    private final String name;
+    private final int threads;
+    private final Source<I> input;
+    private final IntSupplier inputDepth;
+    private final StageQueue<O> output;
+    private final Processor<I, O> processor;
+    private final ExecutorService executorService;
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private long startTime;
+
+    /**
+     * @param name name of the stage used in statistics
+     * @param threads number of threads of the stage
+     * @param input input of the stage
+     * @param inputDepth number of items waiting in the input
+     * @param output output queue of the stage, null for the last stage
+     * @param processor work done for each item
+     */
+    public PipelineStage(String name, int threads, Source<I> input, IntSupplier inputDepth, StageQueue<O> output, Processor<I, O> processor)
+    {
+        this.name = name;
+        this.threads = threads;
+        this.input = input;
+        this.inputDepth = inputDepth;
+        this.output = output;
+        this.processor = processor;
+        this.executorService = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Starts threads of the stage.
+     */
+    public void start()
+    {
+        startTime = System.currentTimeMillis();
+        running.set(threads);
+        for (int i = 0; i < threads; i++)
+        {
+            input.addConsumer();
+            executorService.execute(this::work);
+        }
+    }
+
+    /**
+     * Waits until all threads of the stage finish.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void awaitTermination() throws InterruptedException
+    {
+        executorService.shutdown();
+        executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    private void work()
+    {
+        try
+        {
+            I item;
+            while ((item = input.take()) != null)
+            {
+                long start = System.nanoTime();
+                O result = null;
+                try
+                {
+                    result = processor.process(item);
+                    processed.incrementAndGet();
+                }
+                catch (Exception | Error ex)
+                {
+                    failed.incrementAndGet();
+                    LOG.error("Stage {} failed to process {}", name, item);
+                    LOG.error(ex);
+                }
+                busyNanos.addAndGet(System.nanoTime() - start);
+
+                if (result != null && output != null && !output.put(result))
+                {
+                    failed.incrementAndGet();
+                    LOG.error("Stage {} dropped {}, next stage is not running.", name, result);
+                }
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            LOG.error("Stage {} interrupted.", name);
+        }
+        finally
+        {
+            input.removeConsumer();
+            if (running.decrementAndGet() == 0 && output != null)
+            {
+                try
+                {
+                    output.finish();
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    /**
+     * @return number of items waiting in the input of the stage
+     */
+    public int getQueueDepth()
+    {
+        return inputDepth.getAsInt();
+    }
+
+    public long getProcessed()
+    {
+        return processed.get();
+    }
+
+    public long getFailed()
+    {
+        return failed.get();
+    }
+
+    /**
+     * @return processed items per second since the stage was started
+     */
+    public double getThroughput()
+    {
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        return processed.get() * 1000.0 / elapsed;
+    }
+
+    /**
+     * @return fraction of time the threads of the stage spent processing items
+     * instead of waiting
+     */
+    public double getUtilization()
+    {
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        return busyNanos.get() / 1000000.0 / (elapsed * threads);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s: threads=%d, queue=%d, processed=%d, failed=%d, throughput=%.2f/s, utilization=%.0f%%",
+                name, threads, getQueueDepth(), getProcessed(), getFailed(), getThroughput(), getUtilization() * 100);
+    }
+}
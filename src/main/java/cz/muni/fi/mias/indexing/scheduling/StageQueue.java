@@ -0,0 +1,104 @@
+package cz.muni.fi.mias.indexing.scheduling;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded hand-off between two stages of {@link IndexingPipeline}. Works the
+ * same way as the path queue of {@link BackgroundProcessMonitor}: producers
+ * block when the queue is full and the end of input is signalled by a poison
+ * pill which every consumer passes on. Once all registered consumers are gone,
+ * producers stop waiting for space and their items are rejected.
+ *
+ * @param <T> type of items passed between stages
+ * @author Dominik Szalai - emptulik at gmail.com
+ */
+public class StageQueue<T> implements PipelineStage.Source<T>
+{
+    private static final Object POISON_PILL = new Object();
+    private static final long OFFER_TIMEOUT = 1;
+    private final BlockingQueue<Object> queue;
+    private final AtomicInteger consumers = new AtomicInteger(0);
+    private volatile boolean consumersRegistered = false;
+
+    /**
+     * @param capacity maximal number of items waiting in the queue
+     */
+    public StageQueue(int capacity)
+    {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Adds item to the queue, waiting if necessary for space to become
+     * available.
+     *
+     * @param item item to be added
+     * @return false if the item was not added because all registered
+     * consumers are gone
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean put(T item) throws InterruptedException
+    {
+        return offer(item);
+    }
+
+    /**
+     * Signals that no more items will be added.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void finish() throws InterruptedException
+    {
+        offer(POISON_PILL);
+    }
+
+    private boolean offer(Object item) throws InterruptedException
+    {
+        while (!queue.offer(item, OFFER_TIMEOUT, TimeUnit.SECONDS))
+        {
+            if (consumersRegistered && consumers.get() <= 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void addConsumer()
+    {
+        consumers.incrementAndGet();
+        consumersRegistered = true;
+    }
+
+    @Override
+    public void removeConsumer()
+    {
+        consumers.decrementAndGet();
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T take() throws InterruptedException
+    {
+        Object item = queue.take();
+        if (item == POISON_PILL)
+        {
+            queue.put(POISON_PILL);
+            return null;
+        }
+
+        return (T) item;
+    }
+
+    /**
+     * @return number of items waiting in the queue
+     */
+    public int size()
+    {
+        return queue.size();
+    }
+}
@@ -0,0 +1,166 @@
+package cz.muni.fi.mias.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TimeLimitingCollector;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.Weight;
+
+/**
+ * Searches segments of the index concurrently. Query weight is created once by
+ * the searcher, so the scores are the same as in the sequential search, top
+ * hits of each segment are collected separately and merged at the end. Time
+ * spent in each segment is recorded. If time limit is set, collection of all
+ * segments stops when it runs out and hits collected so far are returned. If
+ * total hits limit is set, segments share the count of the hits, see
+ * {@link HitCountLimitingCollector}.
+ */
+public class ConcurrentSegmentSearcher {
+
+    private final IndexSearcher searcher;
+    private final ExecutorService executor;
+    private long[] segmentTimes = new long[0];
+    private long timeLimit = 0;
+    private int totalHitsLimit = 0;
+    private volatile boolean partial = false;
+    private volatile boolean limitReached = false;
+
+    /**
+     * @param searcher searcher whose segments are searched
+     * @param executor executor running the segment searches
+     */
+    public ConcurrentSegmentSearcher(IndexSearcher searcher, ExecutorService executor) {
+        this.searcher = searcher;
+        this.executor = executor;
+    }
+
+    /**
+     * @param query query to search for
+     * @param after last hit of the previous page, null for the first page
+     * @param numHits number of top hits to return
+     * @return top hits
+     * @throws IOException if searching of some segment fails
+     */
+    public TopDocs search(Query query, final ScoreDoc after, final int numHits) throws IOException {
+        partial = false;
+        limitReached = false;
+        final AtomicInteger total = new AtomicInteger();
+        final long baseline = TimeLimitingCollector.getGlobalCounter().get();
+        final Weight weight = searcher.createNormalizedWeight(query);
+        List<AtomicReaderContext> leaves = searcher.getIndexReader().leaves();
+        final long[] times = new long[leaves.size()];
+        List<Future<TopDocs>> futures = new ArrayList<>();
+        for (int i = 0; i < leaves.size(); i++) {
+            final int segment = i;
+            final AtomicReaderContext context = leaves.get(i);
+            futures.add(executor.submit(() -> {
+                long start = System.nanoTime();
+                try {
+                    return searchSegment(weight, context, after, numHits, baseline, total);
+                } finally {
+                    times[segment] = (System.nanoTime() - start) / 1000;
+                }
+            }));
+        }
+
+        TopDocs[] segmentHits = new TopDocs[futures.size()];
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                segmentHits[i] = futures.get(i).get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+        segmentTimes = times;
+        return TopDocs.merge(null, numHits, segmentHits);
+    }
+
+    private TopDocs searchSegment(Weight weight, AtomicReaderContext context, ScoreDoc after, int numHits, long baseline, AtomicInteger total) throws IOException {
+        TopScoreDocCollector collector = TopScoreDocCollector.create(numHits, after, !weight.scoresDocsOutOfOrder());
+        Collector segmentCollector = collector;
+        HitCountLimitingCollector limitingCollector = null;
+        if (totalHitsLimit > 0) {
+            limitingCollector = new HitCountLimitingCollector(segmentCollector, total, totalHitsLimit, numHits);
+            segmentCollector = limitingCollector;
+        }
+        if (timeLimit > 0) {
+            TimeLimitingCollector timeLimitingCollector = new TimeLimitingCollector(collector, TimeLimitingCollector.getGlobalCounter(), timeLimit);
+            timeLimitingCollector.setBaseline(baseline);
+            segmentCollector = timeLimitingCollector;
+        }
+        try {
+            segmentCollector.setNextReader(context);
+            BulkScorer scorer = weight.bulkScorer(context, !segmentCollector.acceptsDocsOutOfOrder(), context.reader().getLiveDocs());
+            if (scorer != null) {
+                scorer.score(segmentCollector);
+            }
+        } catch (CollectionTerminatedException ex) {
+            // collection of this segment finished early
+        } catch (TimeLimitingCollector.TimeExceededException ex) {
+            partial = true;
+        }
+        if (limitingCollector != null && limitingCollector.isLimitReached()) {
+            limitReached = true;
+        }
+        return collector.topDocs();
+    }
+
+    /**
+     * @param timeLimit time in milliseconds the search can take, 0 if not
+     * limited
+     */
+    public void setTimeLimit(long timeLimit) {
+        this.timeLimit = timeLimit;
+    }
+
+    /**
+     * @param totalHitsLimit number of hits after which segments stop
+     * collecting, 0 if not limited
+     */
+    public void setTotalHitsLimit(int totalHitsLimit) {
+        this.totalHitsLimit = totalHitsLimit;
+    }
+
+    /**
+     * @return true if collection of some segment of the last search was
+     * stopped by the total hits limit
+     */
+    public boolean isLimitReached() {
+        return limitReached;
+    }
+
+    /**
+     * @return true if the last search ran out of time and returned only hits
+     * collected so far
+     */
+    public boolean isPartial() {
+        return partial;
+    }
+
+    /**
+     * @return time in microseconds spent in each segment by the last search,
+     * in the order of the segments
+     */
+    public long[] getSegmentTimes() {
+        return segmentTimes;
+    }
+}
@@ -0,0 +1,77 @@
+package cz.muni.fi.mias.search;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Scorer;
+
+/**
+ * Collector passing hits to the wrapped collector until the total number of
+ * hits reaches the limit. Each segment still passes at least the given number
+ * of hits, so every segment can contribute to the top hits, then the rest of
+ * the segment is skipped. The total number of hits is then only a lower bound
+ * and the top hits are the best ones among the hits collected, hits later in a
+ * segment are not ranked. Total can be shared by collectors of segments
+ * searched concurrently.
+ */
+public class HitCountLimitingCollector extends Collector {
+
+    private final Collector collector;
+    private final AtomicInteger total;
+    private final int maxHits;
+    private final int segmentHits;
+    private int hits = 0;
+    private volatile boolean limitReached = false;
+
+    /**
+     * @param collector collector receiving the hits
+     * @param total number of hits collected so far, shared by all collectors
+     * of one search
+     * @param maxHits number of hits after which the collection is stopped
+     * @param segmentHits number of hits each segment passes before it can be
+     * stopped, usually the number of top hits
+     */
+    public HitCountLimitingCollector(Collector collector, AtomicInteger total, int maxHits, int segmentHits) {
+        this.collector = collector;
+        this.total = total;
+        this.maxHits = maxHits;
+        this.segmentHits = segmentHits;
+    }
+
+    @Override
+    public void setScorer(Scorer scorer) throws IOException {
+        collector.setScorer(scorer);
+    }
+
+    @Override
+    public void collect(int doc) throws IOException {
+        if (hits >= segmentHits && total.get() >= maxHits) {
+            limitReached = true;
+            throw new CollectionTerminatedException();
+        }
+        collector.collect(doc);
+        hits++;
+        total.incrementAndGet();
+    }
+
+    @Override
+    public void setNextReader(AtomicReaderContext context) throws IOException {
+        hits = 0;
+        collector.setNextReader(context);
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder() {
+        return collector.acceptsDocsOutOfOrder();
+    }
+
+    /**
+     * @return true if collection of some segment was stopped, actual number of
+     * hits is higher
+     */
+    public boolean isLimitReached() {
+        return limitReached;
+    }
+}
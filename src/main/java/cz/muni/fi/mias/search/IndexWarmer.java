@@ -0,0 +1,103 @@
+package cz.muni.fi.mias.search;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+
+/**
+ * Reads postings, payloads, norms and stored fields of the whole index once, so
+ * their pages are loaded before the first queries come. Segments are warmed
+ * only once, reopened reader warms only the new segments.
+ */
+public class IndexWarmer {
+
+    private static final Logger LOG = LogManager.getLogger(IndexWarmer.class);
+    private final Set<Object> warmed = Collections.newSetFromMap(Collections.synchronizedMap(new WeakHashMap<Object, Boolean>()));
+
+    /**
+     * Warms segments of the reader not warmed yet.
+     *
+     * @param reader reader to be warmed
+     * @throws IOException if the index cannot be read
+     */
+    public void warm(IndexReader reader) throws IOException {
+        long start = System.currentTimeMillis();
+        int segments = 0;
+        long postings = 0;
+        for (AtomicReaderContext context : reader.leaves()) {
+            AtomicReader leaf = context.reader();
+            if (warmed.add(leaf.getCoreCacheKey())) {
+                postings += warmPostings(leaf);
+                warmStoredFields(leaf);
+                segments++;
+            }
+        }
+        if (segments > 0) {
+            LOG.info("Warmed {} segments, {} postings read in {} ms.", segments, postings, System.currentTimeMillis() - start);
+        }
+    }
+
+    private long warmPostings(AtomicReader leaf) throws IOException {
+        long result = 0;
+        Fields fields = leaf.fields();
+        if (fields == null) {
+            return result;
+        }
+        for (String field : fields) {
+            Terms terms = fields.terms(field);
+            if (terms == null) {
+                continue;
+            }
+            if (leaf.hasNorms(field)) {
+                leaf.getNormValues(field).get(0);
+            }
+            TermsEnum termsEnum = terms.iterator(null);
+            DocsEnum docsEnum = null;
+            DocsAndPositionsEnum positionsEnum = null;
+            while (termsEnum.next() != null) {
+                if (terms.hasPositions()) {
+                    positionsEnum = termsEnum.docsAndPositions(null, positionsEnum, DocsAndPositionsEnum.FLAG_PAYLOADS);
+                    while (positionsEnum.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                        for (int i = 0; i < positionsEnum.freq(); i++) {
+                            positionsEnum.nextPosition();
+                            positionsEnum.getPayload();
+                        }
+                        result++;
+                    }
+                } else {
+                    docsEnum = termsEnum.docs(null, docsEnum);
+                    while (docsEnum.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+                        result++;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private void warmStoredFields(AtomicReader leaf) throws IOException {
+        StoredFieldVisitor visitor = new StoredFieldVisitor() {
+            @Override
+            public Status needsField(FieldInfo fieldInfo) {
+                return Status.STOP;
+            }
+        };
+        for (int i = 0; i < leaf.maxDoc(); i++) {
+            leaf.document(i, visitor);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package cz.muni.fi.mias.search;
+
+import cz.muni.fi.mias.FormulaOffsets;
+import cz.muni.fi.mias.Settings;
+import cz.muni.fi.mias.math.MathTokenizer;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Bounded cache of the weighted formulae (M-terms) extracted from math queries
+ * by {@link MathTokenizer}. Each formula of the query is cached separately,
+ * identified by its MathML with normalized whitespace and the MathML variant,
+ * so queries sharing only some formulae tokenize just the formulae not seen
+ * before. Formulae of the query are then merged, M-term occurring in more
+ * formulae gets its highest weight. Least recently used entry is evicted when
+ * the cache is full. Cache is thread-safe.
+ */
+public class MathQueryCache {
+
+    private static final Logger LOG = LogManager.getLogger(MathQueryCache.class);
+    private final int maxSize;
+    private final Map<String, Map<String, Float>> cache;
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     * @param maxSize maximum number of cached formulae, 0 disables the
+     * cache
+     */
+    public MathQueryCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.cache = new LinkedHashMap<String, Map<String, Float>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Map<String, Float>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns weighted formulae of the math query, tokenizes only the formulae
+     * of the query that are not cached.
+     *
+     * @param mathQuery xhtml document with the MathML of the query
+     * @param variant MathML variant the formulae are extracted from
+     * @return unmodifiable map of formulae and their weights
+     */
+    public Map<String, Float> getQueryFormulae(String mathQuery, MathTokenizer.MathMLType variant) {
+        FormulaOffsets offsets = FormulaOffsets.build(mathQuery);
+        if (offsets.size() == 0) {
+            return getFormulae(mathQuery, mathQuery, variant);
+        }
+        if (offsets.size() == 1) {
+            return getFormulae(mathQuery.substring(offsets.getStart(0), offsets.getEnd(0)), null, variant);
+        }
+
+        Map<String, Float> result = new LinkedHashMap<>();
+        for (int i = 0; i < offsets.size(); i++) {
+            String formula = mathQuery.substring(offsets.getStart(i), offsets.getEnd(i));
+            for (Map.Entry<String, Float> entry : getFormulae(formula, null, variant).entrySet()) {
+                Float weight = result.get(entry.getKey());
+                if (weight == null || weight < entry.getValue()) {
+                    result.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * @param fragment MathML of single formula, or the whole query if no
+     * formula is recognized in it
+     * @param document xhtml document to be tokenized, null to wrap the
+     * fragment into one
+     */
+    private Map<String, Float> getFormulae(String fragment, String document, MathTokenizer.MathMLType variant) {
+        String key = variant + "\n" + QueryResultCache.normalize(fragment);
+        Map<String, Float> result;
+        synchronized (cache) {
+            result = cache.get(key);
+        }
+        if (result != null) {
+            hits.incrementAndGet();
+            return result;
+        }
+
+        misses.incrementAndGet();
+        if (document == null) {
+            document = Settings.MATHDOCHEADER + "<html>" + fragment + "</html>";
+        }
+        MathTokenizer mt = new MathTokenizer(new StringReader(document), false, variant);
+        try {
+            mt.reset();
+        } catch (IOException ex) {
+            LOG.fatal(ex);
+        }
+        result = Collections.unmodifiableMap(new LinkedHashMap<>(mt.getQueryFormulae()));
+        if (maxSize > 0) {
+            synchronized (cache) {
+                cache.put(key, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return number of formulae served from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of formulae that had to be tokenized
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "hits: " + hits + ", misses: " + misses;
+    }
+}
@@ -0,0 +1,86 @@
+package cz.muni.fi.mias.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+
+/**
+ * Removes formulae (M-terms) of low weight or very common in the index from
+ * math queries, so their long postings are not traversed. Formula is kept if
+ * its weight is at least the minimum boost, it is among the maximum number of
+ * formulae with the highest weights and it occurs in at most given fraction of
+ * documents. At least the formula with the highest weight is always kept, so
+ * math query never becomes empty.
+ */
+public class MathQueryPruner {
+
+    private final float minBoost;
+    private final int maxClauses;
+    private final float maxDocFreqRatio;
+
+    /**
+     * @param minBoost minimum weight of a kept formula, 0 keeps all
+     * @param maxClauses maximum number of kept formulae, 0 if not limited
+     * @param maxDocFreqRatio maximum fraction of documents containing a kept
+     * formula, 1 keeps all
+     */
+    public MathQueryPruner(float minBoost, int maxClauses, float maxDocFreqRatio) {
+        this.minBoost = minBoost;
+        this.maxClauses = maxClauses;
+        this.maxDocFreqRatio = maxDocFreqRatio;
+    }
+
+    /**
+     * @return true if some formulae can be removed by this pruner
+     */
+    public boolean isEnabled() {
+        return minBoost > 0 || maxClauses > 0 || maxDocFreqRatio < 1;
+    }
+
+    /**
+     * @param queryForms formulae of the query with their weights
+     * @param field field the formulae are searched in
+     * @param reader reader providing document frequencies of the formulae
+     * @return kept formulae in their original order
+     * @throws IOException if document frequency cannot be read
+     */
+    public Map<String, Float> prune(Map<String, Float> queryForms, String field, IndexReader reader) throws IOException {
+        if (!isEnabled() || queryForms.isEmpty()) {
+            return queryForms;
+        }
+
+        List<Map.Entry<String, Float>> byWeight = new ArrayList<>(queryForms.entrySet());
+        byWeight.sort((a, b) -> Float.compare(b.getValue(), a.getValue()));
+        int maxDocFreq = (int) Math.ceil(maxDocFreqRatio * reader.maxDoc());
+        Set<String> kept = new HashSet<>();
+        for (Map.Entry<String, Float> entry : byWeight) {
+            if (maxClauses > 0 && kept.size() >= maxClauses) {
+                break;
+            }
+            if (entry.getValue() < minBoost) {
+                break;
+            }
+            if (maxDocFreqRatio < 1 && reader.docFreq(new Term(field, entry.getKey())) > maxDocFreq) {
+                continue;
+            }
+            kept.add(entry.getKey());
+        }
+        if (kept.isEmpty()) {
+            kept.add(byWeight.get(0).getKey());
+        }
+
+        Map<String, Float> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Float> entry : queryForms.entrySet()) {
+            if (kept.contains(entry.getKey())) {
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+}
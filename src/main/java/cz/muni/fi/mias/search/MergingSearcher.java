@@ -0,0 +1,289 @@
+package cz.muni.fi.mias.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TimeLimitingCollector;
+import org.apache.lucene.search.TopDocs;
+
+/**
+ * Searches parts of a query concurrently as separate queries and merges their
+ * hits. Hit has to match at least one of the optional parts and the required
+ * part if given, its score is the sum of its scores in the matched parts. The
+ * scores are therefore not normalized across the parts the way they are in one
+ * boolean query. If time limit is set, collection of all parts stops when it
+ * runs out and hits collected so far are merged. Only the best hits of each
+ * part are kept, at most the given depth, so memory does not grow with the
+ * number of matching documents. A hit dropped by some part is then merged
+ * without its score in that part or, for the required part, not at all, and
+ * the total is only the number of merged hits.
+ */
+public class MergingSearcher {
+
+    private static final Comparator<ScoreDoc> BY_SCORE = (a, b) -> {
+        int result = Float.compare(b.score, a.score);
+        return result != 0 ? result : Integer.compare(a.doc, b.doc);
+    };
+    private final IndexSearcher searcher;
+    private final ExecutorService executor;
+    private long timeLimit = 0;
+    private int depth = Integer.MAX_VALUE;
+    private long baseline;
+    private volatile boolean partial = false;
+    private volatile boolean truncated = false;
+
+    /**
+     * @param searcher searcher running the parts
+     * @param executor executor running all parts but the first one, the first
+     * one is run by the calling thread
+     */
+    public MergingSearcher(IndexSearcher searcher, ExecutorService executor) {
+        this.searcher = searcher;
+        this.executor = executor;
+    }
+
+    /**
+     * @param optional parts of which at least one has to match
+     * @param required part that has to match, can be null
+     * @param after last hit of the previous page, null for the first page
+     * @param numHits number of top hits to return
+     * @return top hits
+     * @throws IOException if searching of some part fails
+     */
+    public TopDocs search(List<Query> optional, Query required, ScoreDoc after, int numHits) throws IOException {
+        partial = false;
+        truncated = false;
+        final int partDepth = Math.max(depth, numHits);
+        baseline = TimeLimitingCollector.getGlobalCounter().get();
+        List<Query> parts = new ArrayList<>(optional);
+        if (required != null) {
+            parts.add(required);
+        }
+        List<Future<Hits>> futures = new ArrayList<>();
+        for (final Query part : parts.subList(1, parts.size())) {
+            futures.add(executor.submit(() -> collect(part, partDepth)));
+        }
+
+        List<Hits> hits = new ArrayList<>();
+        hits.add(collect(parts.get(0), partDepth));
+        try {
+            for (Future<Hits> future : futures) {
+                hits.add(future.get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        }
+
+        Hits merged = hits.get(0);
+        for (int i = 1; i < optional.size(); i++) {
+            merged = merged.union(hits.get(i));
+        }
+        if (required != null) {
+            merged = merged.intersect(hits.get(hits.size() - 1));
+        }
+        return merged.top(after, numHits);
+    }
+
+    private Hits collect(Query query, int partDepth) throws IOException {
+        PartCollector collector = new PartCollector(partDepth);
+        if (timeLimit > 0) {
+            TimeLimitingCollector limitingCollector = new TimeLimitingCollector(collector, TimeLimitingCollector.getGlobalCounter(), timeLimit);
+            limitingCollector.setBaseline(baseline);
+            try {
+                searcher.search(query, limitingCollector);
+            } catch (TimeLimitingCollector.TimeExceededException ex) {
+                partial = true;
+            }
+        } else {
+            searcher.search(query, collector);
+        }
+        if (collector.count > partDepth) {
+            truncated = true;
+        }
+        return collector.getHits();
+    }
+
+    /**
+     * @param timeLimit time in milliseconds the search can take, 0 if not
+     * limited
+     */
+    public void setTimeLimit(long timeLimit) {
+        this.timeLimit = timeLimit;
+    }
+
+    /**
+     * @param depth maximum number of best hits kept for each part, at least
+     * the number of requested hits are always kept
+     */
+    public void setDepth(int depth) {
+        this.depth = depth;
+    }
+
+    /**
+     * @return true if some part of the last search matched more hits than the
+     * depth, so the merged hits and their total may be incomplete
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return true if the last search ran out of time and merged only hits
+     * collected so far
+     */
+    public boolean isPartial() {
+        return partial;
+    }
+
+    /**
+     * Collector keeping at most the given number of best hits of a part.
+     */
+    private static class PartCollector extends Collector {
+
+        private final int depth;
+        private final PriorityQueue<ScoreDoc> queue;
+        private int count = 0;
+        private int docBase;
+        private Scorer scorer;
+
+        PartCollector(int depth) {
+            this.depth = depth;
+            this.queue = new PriorityQueue<>(Math.min(depth, 1024), BY_SCORE.reversed());
+        }
+
+        @Override
+        public void setScorer(Scorer scorer) {
+            this.scorer = scorer;
+        }
+
+        @Override
+        public void collect(int doc) throws IOException {
+            count++;
+            float score = scorer.score();
+            if (queue.size() < depth) {
+                queue.add(new ScoreDoc(docBase + doc, score));
+            } else if (score > queue.peek().score) {
+                queue.poll();
+                queue.add(new ScoreDoc(docBase + doc, score));
+            }
+        }
+
+        @Override
+        public void setNextReader(AtomicReaderContext context) {
+            docBase = context.docBase;
+        }
+
+        @Override
+        public boolean acceptsDocsOutOfOrder() {
+            return false;
+        }
+
+        /**
+         * @return kept hits ordered by document number
+         */
+        Hits getHits() {
+            ScoreDoc[] kept = queue.toArray(new ScoreDoc[queue.size()]);
+            Arrays.sort(kept, (a, b) -> Integer.compare(a.doc, b.doc));
+            Hits result = new Hits();
+            for (ScoreDoc hit : kept) {
+                result.add(hit.doc, hit.score);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Hits with their scores ordered by document number.
+     */
+    private static class Hits {
+
+        private int[] docs = new int[16];
+        private float[] scores = new float[16];
+        private int size = 0;
+
+        private void add(int doc, float score) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                scores = Arrays.copyOf(scores, size * 2);
+            }
+            docs[size] = doc;
+            scores[size] = score;
+            size++;
+        }
+
+        Hits union(Hits other) {
+            Hits result = new Hits();
+            int i = 0;
+            int j = 0;
+            while (i < size || j < other.size) {
+                if (j == other.size || (i < size && docs[i] < other.docs[j])) {
+                    result.add(docs[i], scores[i]);
+                    i++;
+                } else if (i == size || other.docs[j] < docs[i]) {
+                    result.add(other.docs[j], other.scores[j]);
+                    j++;
+                } else {
+                    result.add(docs[i], scores[i] + other.scores[j]);
+                    i++;
+                    j++;
+                }
+            }
+            return result;
+        }
+
+        Hits intersect(Hits other) {
+            Hits result = new Hits();
+            int i = 0;
+            int j = 0;
+            while (i < size && j < other.size) {
+                if (docs[i] < other.docs[j]) {
+                    i++;
+                } else if (other.docs[j] < docs[i]) {
+                    j++;
+                } else {
+                    result.add(docs[i], scores[i] + other.scores[j]);
+                    i++;
+                    j++;
+                }
+            }
+            return result;
+        }
+
+        TopDocs top(ScoreDoc after, int numHits) {
+            PriorityQueue<ScoreDoc> queue = new PriorityQueue<>(numHits, BY_SCORE.reversed());
+            for (int i = 0; i < size; i++) {
+                ScoreDoc hit = new ScoreDoc(docs[i], scores[i]);
+                if (after != null && BY_SCORE.compare(hit, after) <= 0) {
+                    continue;
+                }
+                if (queue.size() < numHits) {
+                    queue.add(hit);
+                } else if (BY_SCORE.compare(hit, queue.peek()) < 0) {
+                    queue.poll();
+                    queue.add(hit);
+                }
+            }
+            ScoreDoc[] result = queue.toArray(new ScoreDoc[queue.size()]);
+            Arrays.sort(result, BY_SCORE);
+            return new TopDocs(size, result, result.length == 0 ? Float.NaN : result[0].score);
+        }
+    }
+}
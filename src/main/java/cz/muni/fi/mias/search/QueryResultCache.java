@@ -0,0 +1,260 @@
+package cz.muni.fi.mias.search;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+
+/**
+ * Bounded cache of the top hits of recent queries. Queries are identified by
+ * the parsed Lucene query and the reader they were searched in, so query
+ * strings differing only in whitespace, attribute order or namespace prefixes
+ * of the MathML share the entry if they yield the same formulae, and reopened
+ * searcher never gets hits of the previous one. Entries of a reader are removed
+ * when the reader is closed and are never returned once the reader is closing,
+ * other entries expire after given time or are evicted when the cache is full
+ * (least recently used first). Hit ratio is logged every
+ * {@link #REPORT_INTERVAL} lookups. Cache is thread-safe.
+ */
+public class QueryResultCache {
+
+    private static final Logger LOG = LogManager.getLogger(QueryResultCache.class);
+    private static final long REPORT_INTERVAL = 1000;
+    private final int maxSize;
+    private final long ttlNanos;
+    private final Map<Key, Entry> cache;
+    private final Set<IndexReader> readers = Collections.newSetFromMap(new IdentityHashMap<IndexReader, Boolean>());
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong lookups = new AtomicLong(0);
+
+    /**
+     * @param maxSize maximum number of cached queries, 0 disables the cache
+     * @param ttl time in seconds after which cached hits expire
+     */
+    public QueryResultCache(final int maxSize, long ttl) {
+        this.maxSize = maxSize;
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttl);
+        this.cache = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns cached hits of the query if at least numHits top hits are cached.
+     *
+     * @param reader reader the query is searched in
+     * @param query parsed query
+     * @param numHits number of top hits needed
+     * @return cached hits limited to numHits or null if not cached
+     */
+    public Entry get(IndexReader reader, Query query, int numHits) {
+        if (maxSize == 0) {
+            return null;
+        }
+        Entry entry = null;
+        Key key = new Key(reader, query);
+        if (reader.getRefCount() > 0) {
+            synchronized (cache) {
+                entry = cache.get(key);
+                if (entry != null && System.nanoTime() - entry.created > ttlNanos) {
+                    cache.remove(key);
+                    entry = null;
+                }
+            }
+        }
+        if (entry == null || !entry.covers(numHits)) {
+            misses.incrementAndGet();
+            entry = null;
+        } else {
+            hits.incrementAndGet();
+            entry = entry.limit(numHits);
+        }
+        if (lookups.incrementAndGet() % REPORT_INTERVAL == 0) {
+            LOG.info("Query result cache {}", this);
+        }
+        return entry;
+    }
+
+    /**
+     * Caches hits of the query.
+     *
+     * @param reader reader the query was searched in
+     * @param query parsed query
+     * @param numHits number of top hits that were collected
+     * @param parts queries of the parts the hits were merged from by split
+     * search, null if the hits come from the query itself
+     * @param topDocs collected hits
+     * @param exact false if the total number of hits is only a lower bound
+     */
+    public void put(IndexReader reader, Query query, int numHits, List<Query> parts, TopDocs topDocs, boolean exact) {
+        if (maxSize == 0) {
+            return;
+        }
+        boolean register;
+        synchronized (cache) {
+            cache.put(new Key(reader, query), new Entry(query, parts, topDocs, exact, numHits, System.nanoTime()));
+            register = readers.add(reader);
+        }
+        if (register) {
+            reader.addReaderClosedListener(this::invalidate);
+        }
+    }
+
+    private void invalidate(IndexReader reader) {
+        synchronized (cache) {
+            readers.remove(reader);
+            Iterator<Key> it = cache.keySet().iterator();
+            while (it.hasNext()) {
+                if (it.next().reader == reader) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of queries answered from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of queries not found in the cache
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return ratio of queries answered from the cache
+     */
+    public double getHitRatio() {
+        long total = hits.get() + misses.get();
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+
+    @Override
+    public String toString() {
+        return "hits: " + hits + ", misses: " + misses + ", hit ratio: " + getHitRatio();
+    }
+
+    /**
+     * Normalizes whitespace of the query, whitespace between tags is removed
+     * and other whitespace is replaced by single space. Used by
+     * {@link MathQueryCache} for the MathML of the formulae.
+     */
+    static String normalize(String query) {
+        return query.trim().replaceAll(">\\s+<", "><").replaceAll("\\s+", " ");
+    }
+
+    private static class Key {
+
+        private final IndexReader reader;
+        private final Query query;
+
+        Key(IndexReader reader, Query query) {
+            this.reader = reader;
+            this.query = query;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return reader == other.reader && query.equals(other.query);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(reader) + query.hashCode();
+        }
+    }
+
+    /**
+     * Cached hits of one query.
+     */
+    public static class Entry {
+
+        private final Query query;
+        private final List<Query> parts;
+        private final TopDocs topDocs;
+        private final boolean exact;
+        private final int numHits;
+        private final long created;
+
+        Entry(Query query, List<Query> parts, TopDocs topDocs, boolean exact, int numHits, long created) {
+            this.query = query;
+            this.parts = parts;
+            this.topDocs = topDocs;
+            this.exact = exact;
+            this.numHits = numHits;
+            this.created = created;
+        }
+
+        /**
+         * @return true if the entry contains at least numHits top hits or all
+         * hits of the query
+         */
+        boolean covers(int numHits) {
+            return this.numHits >= numHits || topDocs.scoreDocs.length < this.numHits;
+        }
+
+        Entry limit(int numHits) {
+            if (topDocs.scoreDocs.length <= numHits) {
+                return this;
+            }
+            ScoreDoc[] scoreDocs = Arrays.copyOf(topDocs.scoreDocs, numHits);
+            return new Entry(query, parts, new TopDocs(topDocs.totalHits, scoreDocs, topDocs.getMaxScore()), exact, numHits, created);
+        }
+
+        /**
+         * @return parsed query
+         */
+        public Query getQuery() {
+            return query;
+        }
+
+        /**
+         * @return queries of the split search parts, null if the hits come
+         * from the query itself
+         */
+        public List<Query> getParts() {
+            return parts;
+        }
+
+        /**
+         * @return top hits of the query
+         */
+        public TopDocs getTopDocs() {
+            return topDocs;
+        }
+
+        /**
+         * @return false if the total number of hits is only a lower bound
+         */
+        public boolean isExact() {
+            return exact;
+        }
+    }
+}
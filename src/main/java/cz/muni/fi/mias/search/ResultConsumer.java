@@ -0,0 +1,31 @@
+package cz.muni.fi.mias.search;
+
+import java.io.IOException;
+import java.util.Set;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.search.ScoreDoc;
+
+/**
+ * Receives results of a streaming search one by one, see
+ * {@link Searching#searchStream(String, ScoreDoc, int, cz.muni.fi.mias.math.MathTokenizer.MathMLType, ResultConsumer)}.
+ * Results are not kept by the search, so consumer handling thousands of hits
+ * (e.g. writing an evaluation run) does not need memory for all of them.
+ */
+public interface ResultConsumer {
+
+    /**
+     * @return names of the stored fields read for each result, null reads all
+     * stored fields, empty set reads none
+     */
+    public Set<String> getFields();
+
+    /**
+     * @param rank rank of the result in the streamed page, starting with 0
+     * @param hit document number and score of the result
+     * @param document requested stored fields of the result, null if no fields
+     * are requested
+     * @return false if no more results are wanted
+     * @throws IOException if the result cannot be handled, the search stops
+     */
+    public boolean accept(int rank, ScoreDoc hit, Document document) throws IOException;
+}
@@ -5,6 +5,7 @@
 package cz.muni.fi.mias.search;
 
 import java.util.List;
+import org.apache.lucene.search.ScoreDoc;
 
 /**
  * Container class for results from a single search.
@@ -15,6 +16,11 @@ public class SearchResult {
     
     private List<Result> results;
     private int totalResults;
+    private boolean totalResultsExact = true;
+    private boolean partial = false;
+    private int prunedClauses = 0;
+    private ScoreDoc lastScoreDoc;
+    private long[] segmentTimes;
     private long coreSearchTime;
     private long totalSearchTime;
     private String query;
@@ -58,6 +64,54 @@ public class SearchResult {
     public void setTotalResults(int totalResults) {
         this.totalResults = totalResults;
     }
+
+    /**
+     * 
+     * @return false if counting of the hits was stopped and total number of results is only a lower bound
+     */
+    public boolean isTotalResultsExact() {
+        return totalResultsExact;
+    }
+
+    public void setTotalResultsExact(boolean totalResultsExact) {
+        this.totalResultsExact = totalResultsExact;
+    }
+
+    /**
+     * 
+     * @return true if the search ran out of time and the results are the best hits found so far
+     */
+    public boolean isPartial() {
+        return partial;
+    }
+
+    public void setPartial(boolean partial) {
+        this.partial = partial;
+    }
+
+    /**
+     * 
+     * @return number of formulae removed from the math query by pruning
+     */
+    public int getPrunedClauses() {
+        return prunedClauses;
+    }
+
+    public void setPrunedClauses(int prunedClauses) {
+        this.prunedClauses = prunedClauses;
+    }
+
+    /**
+     * 
+     * @return last hit of the returned page, cursor for retrieving the next page, null if there are no results
+     */
+    public ScoreDoc getLastScoreDoc() {
+        return lastScoreDoc;
+    }
+
+    public void setLastScoreDoc(ScoreDoc lastScoreDoc) {
+        this.lastScoreDoc = lastScoreDoc;
+    }
     
     /**
      * 
@@ -71,6 +125,19 @@ public class SearchResult {
         this.coreSearchTime = coreSearchTime;
     }
 
+    /**
+     * 
+     * @return time in microseconds spent in each index segment, only for debug searches with concurrent segment
+     * search, null otherwise
+     */
+    public long[] getSegmentTimes() {
+        return segmentTimes;
+    }
+
+    public void setSegmentTimes(long[] segmentTimes) {
+        this.segmentTimes = segmentTimes;
+    }
+
     /**
      * 
      * @return search time including hits information extraction
@@ -0,0 +1,188 @@
+package cz.muni.fi.mias.search;
+
+import cz.muni.fi.mias.PayloadSimilarity;
+import cz.muni.fi.mias.Settings;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ReferenceManager;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.store.Directory;
+
+/**
+ * Holds one shared IndexSearcher for many concurrent {@link Searching}
+ * instances. Searcher is reference counted, each query acquires it and releases
+ * it when done, so it can be reopened when the index changes without closing
+ * it under running queries. Reopen can be requested explicitly by
+ * {@link #refresh()} or run periodically. Number of reopens, their latency and
+ * current searcher generation are tracked.
+ */
+public class SearcherHolder implements Closeable {
+
+    private static final Logger LOG = LogManager.getLogger(SearcherHolder.class);
+    private final SearcherManager searcherManager;
+    private ScheduledExecutorService refresher;
+    private final AtomicLong generation = new AtomicLong(0);
+    private final AtomicLong refreshCount = new AtomicLong(0);
+    private final AtomicLong totalRefreshTime = new AtomicLong(0);
+    private volatile long lastRefreshTime = 0;
+
+    /**
+     * Creates holder over the last commit of the index in the given directory.
+     * Changes become visible after they are committed and the searcher is
+     * refreshed.
+     *
+     * @param directory directory with the index
+     * @throws IOException if the index cannot be opened
+     */
+    public SearcherHolder(Directory directory) throws IOException {
+        this(new SearcherManager(directory, new PayloadSearcherFactory()));
+    }
+
+    /**
+     * Creates near-real-time holder, refreshed searcher sees also uncommitted
+     * changes of the given writer.
+     *
+     * @param writer writer changing the index
+     * @throws IOException if the index cannot be opened
+     */
+    public SearcherHolder(IndexWriter writer) throws IOException {
+        this(new SearcherManager(writer, true, new PayloadSearcherFactory()));
+    }
+
+    private SearcherHolder(SearcherManager searcherManager) {
+        this.searcherManager = searcherManager;
+        this.searcherManager.addListener(new ReferenceManager.RefreshListener() {
+            private long start;
+
+            @Override
+            public void beforeRefresh() {
+                start = System.nanoTime();
+            }
+
+            @Override
+            public void afterRefresh(boolean didRefresh) {
+                if (didRefresh) {
+                    lastRefreshTime = (System.nanoTime() - start) / 1000000;
+                    totalRefreshTime.addAndGet(lastRefreshTime);
+                    refreshCount.incrementAndGet();
+                    LOG.info("Searcher generation {} opened in {} ms.", generation.incrementAndGet(), lastRefreshTime);
+                }
+            }
+        });
+    }
+
+    /**
+     * Starts periodic check whether the index changed and reopens the searcher
+     * if so.
+     *
+     * @param interval interval between two checks in seconds
+     */
+    public synchronized void startRefreshing(long interval) {
+        if (refresher == null && interval > 0) {
+            refresher = Executors.newSingleThreadScheduledExecutor();
+            refresher.scheduleWithFixedDelay(() -> {
+                try {
+                    refresh();
+                } catch (IOException ex) {
+                    LOG.error(ex);
+                }
+            }, interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Reopens the searcher if the index changed. Running queries keep using
+     * the previous searcher until they release it.
+     *
+     * @return true if the searcher is current
+     * @throws IOException if the reopen fails
+     */
+    public boolean refresh() throws IOException {
+        return searcherManager.maybeRefresh();
+    }
+
+    /**
+     * Obtains the current searcher. Each acquired searcher has to be released
+     * by {@link #release(IndexSearcher)}.
+     *
+     * @return current searcher
+     * @throws IOException if the searcher is closed
+     */
+    public IndexSearcher acquire() throws IOException {
+        return searcherManager.acquire();
+    }
+
+    /**
+     * @param searcher searcher obtained by {@link #acquire()}
+     * @throws IOException if the searcher cannot be released
+     */
+    public void release(IndexSearcher searcher) throws IOException {
+        searcherManager.release(searcher);
+    }
+
+    /**
+     * @return number of reopens since the holder was created, 0 for the
+     * initially opened searcher
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * @return duration of the last reopen in milliseconds
+     */
+    public long getLastRefreshTime() {
+        return lastRefreshTime;
+    }
+
+    /**
+     * @return average duration of reopens in milliseconds
+     */
+    public double getAverageRefreshTime() {
+        long count = refreshCount.get();
+        return count == 0 ? 0 : (double) totalRefreshTime.get() / count;
+    }
+
+    /**
+     * Stops periodic refresh and closes the searcher. Queries still holding
+     * the searcher can finish, its reader is closed when they release it.
+     *
+     * @throws IOException if the searcher cannot be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+        searcherManager.close();
+    }
+
+    /**
+     * Sets payload similarity to new searchers and warms their new segments if
+     * warm-up is enabled.
+     */
+    private static class PayloadSearcherFactory extends SearcherFactory {
+
+        private final IndexWarmer warmer = Settings.getWarmUp() ? new IndexWarmer() : null;
+
+        @Override
+        public IndexSearcher newSearcher(IndexReader reader) throws IOException {
+            if (warmer != null) {
+                warmer.warm(reader);
+            }
+            IndexSearcher searcher = new IndexSearcher(reader);
+            searcher.setSimilarity(new PayloadSimilarity());
+            return searcher;
+        }
+    }
+}
@@ -5,27 +5,40 @@ import cz.muni.fi.mias.math.MathSeparator;
 import cz.muni.fi.mias.math.MathTokenizer;
 import cz.muni.fi.mias.search.snippets.NiceSnippetExtractor;
 import cz.muni.fi.mias.search.snippets.SnippetExtractor;
+import cz.muni.fi.mias.search.snippets.SnippetQuery;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Enumeration;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.CompressionTools;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
 import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
@@ -33,13 +46,17 @@ import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Explanation;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TimeLimitingCollector;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
 import org.apache.lucene.search.payloads.AveragePayloadFunction;
 import org.apache.lucene.search.payloads.PayloadTermQuery;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
 
 /**
  * Searching class responsible for searching over current index.
@@ -50,7 +67,18 @@ import org.apache.lucene.store.FSDirectory;
  */
 public class Searching {
     private static final Logger LOG = LogManager.getLogger(Searching.class);
+    private static final String SNIPPET_PLACEHOLDER = "Snippet not available";
+    private static final AtomicLong BUDGET_TRIPS = new AtomicLong(0);
+    /**
+     * Stored fields the results are built from.
+     */
+    public static final Set<String> RESULT_FIELDS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("path", "title", "arxivId", "id")));
+    /**
+     * Stored fields needed to locate the source of a snippet and highlight it.
+     */
+    static final Set<String> SNIPPET_FIELDS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList("path", "archivepath", "snippetsource", "formulaoffsets")));
     private IndexSearcher indexSearcher;
+    private SearcherHolder searcherHolder;
     private String storagePath;
     private PayloadSimilarity ps = new PayloadSimilarity();
 //    private TitlesSuggester sug;
@@ -61,7 +89,11 @@ public class Searching {
      */
     public Searching() {
         try {
-            this.indexSearcher = new IndexSearcher(IndexReader.open(FSDirectory.open(Settings.getIndexDir().toFile())));
+            DirectoryReader reader = DirectoryReader.open(Settings.getDirectoryType().open(Settings.getIndexDir()));
+            if (Settings.getWarmUp()) {
+                new IndexWarmer().warm(reader);
+            }
+            this.indexSearcher = new IndexSearcher(reader);
             this.indexSearcher.setSimilarity(ps);
             this.storagePath = "";
 //            sug = new TitlesSuggester(indexSearcher.getIndexReader());
@@ -84,6 +116,20 @@ public class Searching {
 //        sug = new TitlesSuggester(indexSearcher.getIndexReader());
     }
 
+    /**
+     * Constructs new Searching using the shared searcher. Each search acquires
+     * the current searcher of the holder and releases it when done, so the
+     * holder can be reopened while searches are running.
+     *
+     * @param searcherHolder holder of the shared searcher
+     * @param storagePath Root path where the document searched by the searcher
+     * are located
+     */
+    public Searching(SearcherHolder searcherHolder, String storagePath) {
+        this.searcherHolder = searcherHolder;
+        this.storagePath = storagePath;
+    }
+
     /**
      * Searches the index for input in given InputStream. Used for command line
      * or file input of the query. Prints results to standard output.
@@ -122,58 +168,278 @@ public class Searching {
     }
 
     public SearchResult search(String query, boolean print, int offset, int limit, boolean debug, MathTokenizer.MathMLType variant) {
+        return search(query, print, null, offset, limit, debug, variant, RESULT_FIELDS);
+    }
+
+    /**
+     * Searches the index for query specified by string, reading only the given
+     * stored fields of the results. Properties of the results whose fields are
+     * not read are null, e.g. export needing only ids of the documents passes
+     * just "id" and "arxivId". Fields needed for snippets are read in addition
+     * if snippets are extracted.
+     *
+     * @param query String with the query
+     * @param offset index of the first retrieved result
+     * @param limit number of results to retrieve
+     * @param debug if true, results will contain debugging information
+     * @param variant MathML variant the math query is searched in
+     * @param fields stored fields read for the results, see
+     * {@link #RESULT_FIELDS}
+     *
+     * @return Search result
+     */
+    public SearchResult search(String query, int offset, int limit, boolean debug, MathTokenizer.MathMLType variant, Set<String> fields) {
+        return search(query, false, null, offset, limit, debug, variant, fields);
+    }
+
+    /**
+     * Searches the index for the page of results following the given hit. Only
+     * limit hits are collected regardless of the depth of the page, so this is
+     * the cheap way of deep paging. Hits of the previous page have to come from
+     * the same searcher, otherwise some hits can be skipped or repeated.
+     *
+     * @param query String with the query
+     * @param after last hit of the previous page, see
+     * {@link SearchResult#getLastScoreDoc()}, null for the first page
+     * @param limit number of results to retrieve
+     * @param debug if true, results will contain debugging information
+     * @param variant MathML variant the math query is searched in
+     *
+     * @return Search result
+     */
+    public SearchResult searchAfter(String query, ScoreDoc after, int limit, boolean debug, MathTokenizer.MathMLType variant) {
+        return search(query, false, after, 0, limit, debug, variant, RESULT_FIELDS);
+    }
+
+    private SearchResult search(String query, boolean print, ScoreDoc after, int offset, int limit, boolean debug, MathTokenizer.MathMLType variant, Set<String> fields) {
         SearchResult result = new SearchResult();
         result.setQuery(query);
+        IndexSearcher indexSearcher = null;
         try {
+            indexSearcher = acquire();
             long start = System.currentTimeMillis();
-            Query bq = parseInput(query, variant);
-            TopDocs docs = indexSearcher.search(bq, Settings.getMaxResults());
-//            TopFieldDocs docs = indexSearcher.search(bq, null, Settings.getMaxResults(), Sort.RELEVANCE, true, false);
+            TopHits top = findHits(indexSearcher, query, after, getNumHits(offset, limit), debug, variant, result);
             long end = System.currentTimeMillis();
             result.setCoreSearchTime(end-start);
-            result.setResults(getResults(offset, limit, new ArrayList<>(Arrays.asList(docs.scoreDocs)), bq, debug));
-            result.setTotalResults(docs.totalHits);
+            List<ScoreDoc> hits = Arrays.asList(top.docs.scoreDocs);
+            result.setResults(getResults(indexSearcher, offset, limit, hits, top, debug, fields));
+            result.setTotalResults(top.docs.totalHits);
+            if (offset < hits.size()) {
+                result.setLastScoreDoc(hits.get(hits.size() - 1));
+            }
             if (debug) {
-                result.setLuceneQuery(bq.toString());
+                result.setLuceneQuery(top.query.toString());
+                LOG.debug("Query result cache {}, math query cache {}", getQueryResultCache(), getMathQueryCache());
             }
             result.setTotalSearchTime(System.currentTimeMillis() - start);
             if (print) {
-                printResults(result, bq, indexSearcher);
+                printResults(result, top.query, indexSearcher);
             }
         } catch (IOException ex) {
             LOG.fatal(ex);
+        } finally {
+            release(indexSearcher);
         }
         return result;
     }
 
+    /**
+     * Searches the index for the page of results following the given hit and
+     * passes the results to the consumer one by one. Only stored fields
+     * requested by the consumer are read, one document at a time, no list of
+     * results is built and no snippets are extracted, so large pages (e.g.
+     * evaluation runs) are exported in constant memory apart from the top hits
+     * themselves. If the consumer stops the search, the last hit of the result
+     * is the last hit passed to the consumer, so the next page continues after
+     * it.
+     *
+     * @param query String with the query
+     * @param after last hit of the previous page, null for the first page
+     * @param limit number of results to retrieve
+     * @param variant MathML variant the math query is searched in
+     * @param consumer consumer of the results
+     *
+     * @return Search result with the statistics of the search and no results
+     */
+    public SearchResult searchStream(String query, ScoreDoc after, int limit, MathTokenizer.MathMLType variant, ResultConsumer consumer) {
+        SearchResult result = new SearchResult();
+        result.setQuery(query);
+        IndexSearcher indexSearcher = null;
+        try {
+            indexSearcher = acquire();
+            long start = System.currentTimeMillis();
+            TopHits top = findHits(indexSearcher, query, after, getNumHits(0, limit), false, variant, result);
+            result.setCoreSearchTime(System.currentTimeMillis() - start);
+            ScoreDoc[] hits = top.docs.scoreDocs;
+            result.setTotalResults(top.docs.totalHits);
+            if (hits.length > 0) {
+                result.setLastScoreDoc(hits[hits.length - 1]);
+            }
+            Set<String> fields = consumer.getFields();
+            for (int i = 0; i < hits.length; i++) {
+                Document document = null;
+                if (fields == null) {
+                    document = indexSearcher.doc(hits[i].doc);
+                } else if (!fields.isEmpty()) {
+                    document = indexSearcher.doc(hits[i].doc, fields);
+                }
+                if (!consumer.accept(i, hits[i], document)) {
+                    result.setLastScoreDoc(hits[i]);
+                    break;
+                }
+            }
+            result.setTotalSearchTime(System.currentTimeMillis() - start);
+        } catch (IOException ex) {
+            LOG.fatal(ex);
+        } finally {
+            release(indexSearcher);
+        }
+        return result;
+    }
+
+    private static int getNumHits(int offset, int limit) {
+        return (int) Math.max(1, Math.min((long) offset + limit, Settings.getMaxResults()));
+    }
+
+    /**
+     * Finds numHits top hits of the query following the given hit, in the
+     * query result cache if possible. The query is always parsed, as the cache
+     * is keyed by the parsed query. Pruning, partial results and exactness of
+     * the total count are recorded in the search result.
+     */
+    private TopHits findHits(IndexSearcher indexSearcher, String query, ScoreDoc after, int numHits, boolean debug, MathTokenizer.MathMLType variant, SearchResult result) throws IOException {
+        ParsedQuery parsed = parseInput(query, variant, indexSearcher.getIndexReader());
+        result.setPrunedClauses(parsed.getPrunedClauses());
+        Query bq = parsed.toQuery();
+        QueryResultCache.Entry cached = after == null ? getQueryResultCache().get(indexSearcher.getIndexReader(), bq, numHits) : null;
+        if (cached != null) {
+            result.setTotalResultsExact(cached.isExact());
+            return new TopHits(cached.getQuery(), cached.getParts(), cached.getTopDocs());
+        }
+        TopDocs docs;
+        List<Query> parts = null;
+        if (Settings.getSplitMathSearch() && parsed.getMathQueries().size() > 1) {
+            parts = parsed.getParts();
+            MergingSearcher mergingSearcher = new MergingSearcher(indexSearcher, QueryExecutorHolder.EXECUTOR);
+            mergingSearcher.setTimeLimit(Settings.getSearchTimeout());
+            mergingSearcher.setDepth(Settings.getSplitMathDepth());
+            docs = mergingSearcher.search(parsed.getMathQueries(), parsed.getTextQuery(), after, numHits);
+            result.setPartial(mergingSearcher.isPartial());
+            if (mergingSearcher.isTruncated()) {
+                result.setTotalResultsExact(false);
+            }
+        } else {
+            docs = collect(indexSearcher, bq, after, numHits, result, debug);
+        }
+        if (result.isPartial()) {
+            result.setTotalResultsExact(false);
+            LOG.info("Search ran out of time after {} ms, returning hits found so far: {}", Settings.getSearchTimeout(), query);
+            BUDGET_TRIPS.incrementAndGet();
+        } else if (after == null) {
+            getQueryResultCache().put(indexSearcher.getIndexReader(), bq, numHits, parts, docs, result.isTotalResultsExact());
+        }
+        return new TopHits(bq, parts, docs);
+    }
+
+    /**
+     * Collects numHits best hits following the given hit. If more segment
+     * threads are set, segments are searched concurrently. If the total hits
+     * limit is set, each segment stops collecting once the limit is reached
+     * and it has passed numHits hits, the total is then not exact.
+     */
+    private TopDocs collect(IndexSearcher indexSearcher, Query query, ScoreDoc after, int numHits, SearchResult result, boolean debug) throws IOException {
+        long timeout = Settings.getSearchTimeout();
+        int totalHitsLimit = Settings.getTotalHitsLimit();
+        if (Settings.getSegmentThreads() > 1 && indexSearcher.getIndexReader().leaves().size() > 1) {
+            ConcurrentSegmentSearcher segmentSearcher = new ConcurrentSegmentSearcher(indexSearcher, SegmentExecutorHolder.EXECUTOR);
+            segmentSearcher.setTimeLimit(timeout);
+            segmentSearcher.setTotalHitsLimit(totalHitsLimit);
+            TopDocs docs = segmentSearcher.search(query, after, numHits);
+            result.setPartial(segmentSearcher.isPartial());
+            if (segmentSearcher.isLimitReached()) {
+                result.setTotalResultsExact(false);
+            }
+            if (debug) {
+                result.setSegmentTimes(segmentSearcher.getSegmentTimes());
+                LOG.debug("Segment search times [us]: {}", Arrays.toString(segmentSearcher.getSegmentTimes()));
+            }
+            return docs;
+        }
+        TopScoreDocCollector collector = TopScoreDocCollector.create(numHits, after, false);
+        Collector searchCollector = collector;
+        HitCountLimitingCollector limitingCollector = null;
+        if (totalHitsLimit > 0) {
+            limitingCollector = new HitCountLimitingCollector(searchCollector, new AtomicInteger(), totalHitsLimit, numHits);
+            searchCollector = limitingCollector;
+        }
+        if (timeout > 0) {
+            searchCollector = new TimeLimitingCollector(searchCollector, TimeLimitingCollector.getGlobalCounter(), timeout);
+        }
+        try {
+            indexSearcher.search(query, searchCollector);
+        } catch (TimeLimitingCollector.TimeExceededException ex) {
+            result.setPartial(true);
+        }
+        if (limitingCollector != null && limitingCollector.isLimitReached()) {
+            result.setTotalResultsExact(false);
+        }
+        return collector.topDocs();
+    }
+
+    private IndexSearcher acquire() throws IOException {
+        return searcherHolder != null ? searcherHolder.acquire() : indexSearcher;
+    }
+
+    private void release(IndexSearcher searcher) {
+        if (searcherHolder != null && searcher != null) {
+            try {
+                searcherHolder.release(searcher);
+            } catch (IOException ex) {
+                LOG.error(ex);
+            }
+        }
+    }
+
+    /**
+     * @return query the given query string is searched as
+     */
+    Query parseQuery(String queryString, MathTokenizer.MathMLType variant, IndexReader reader) throws IOException {
+        return parseInput(queryString, variant, reader).toQuery();
+    }
+
     /**
      * Parses given query string with possible MathML formulae Supports query
      * grammar specified by org.apache.lucene.queryParser.QueryParser for text
-     * queries
+     * queries. For BOTH variant, presentation and content formulae are
+     * extracted concurrently. Formulae are pruned according to the Settings.
      *
      * @param queryString String holding the query.
-     * @return Query instance representing input query. This query is in form of
-     * (formula_1 or ... or formula_n) and (text queries)
+     * @param reader Reader providing document frequencies for pruning.
+     * @return Parsed math and text parts of the query
      */
-    private Query parseInput(String queryString, MathTokenizer.MathMLType variant) {
-        BooleanQuery result = new BooleanQuery();
+    private ParsedQuery parseInput(String queryString, MathTokenizer.MathMLType variant, IndexReader reader) throws IOException {
+        ParsedQuery result = new ParsedQuery();
         String[] sep = MathSeparator.separate(queryString, "");
         if (sep[1].length() > 0) {
-            BooleanQuery bq = new BooleanQuery();
-            String mathQuery = "<?xml version='1.0' encoding='UTF-8'?><!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.1 plus MathML 2.0//EN\" \"http://www.w3.org/TR/MathML2/dtd/xhtml-math11-f.dtd\"><html>" + sep[1] + "</html>";
-            if (variant == MathTokenizer.MathMLType.PRESENTATION || variant == MathTokenizer.MathMLType.BOTH) {
-                addMathQueries(mathQuery, bq, MathTokenizer.MathMLType.PRESENTATION);
-            }
-            if (variant == MathTokenizer.MathMLType.CONTENT || variant == MathTokenizer.MathMLType.BOTH) {
-                addMathQueries(mathQuery, bq, MathTokenizer.MathMLType.CONTENT);
+            final String mathQuery = "<?xml version='1.0' encoding='UTF-8'?><!DOCTYPE html PUBLIC \"-//W3C//DTD XHTML 1.1 plus MathML 2.0//EN\" \"http://www.w3.org/TR/MathML2/dtd/xhtml-math11-f.dtd\"><html>" + sep[1] + "</html>";
+            if (variant == MathTokenizer.MathMLType.BOTH) {
+                Future<Map<String, Float>> presentation = QueryExecutorHolder.EXECUTOR.submit(
+                        () -> getMathQueryCache().getQueryFormulae(mathQuery, MathTokenizer.MathMLType.PRESENTATION));
+                Map<String, Float> content = getMathQueryCache().getQueryFormulae(mathQuery, MathTokenizer.MathMLType.CONTENT);
+                try {
+                    addMathQuery(result, presentation.get(), MathTokenizer.MathMLType.PRESENTATION, reader);
+                } catch (InterruptedException | ExecutionException ex) {
+                    LOG.fatal(ex);
+                }
+                addMathQuery(result, content, MathTokenizer.MathMLType.CONTENT, reader);
+            } else {
+                addMathQuery(result, getMathQueryCache().getQueryFormulae(mathQuery, variant), variant, reader);
             }
-            result.add(bq, BooleanClause.Occur.MUST);
         }
         if (sep[0].length() > 0) {
             QueryParser parser = new MultiFieldQueryParser(new String[]{"content", "title"}, new StandardAnalyzer());
             try {
-                Query query = parser.parse(sep[0]);
-                result.add(query, BooleanClause.Occur.MUST);
+                result.setTextQuery(parser.parse(sep[0]));
             } catch (ParseException pe) {
                 LOG.error(pe.getMessage());
             }
@@ -181,22 +447,26 @@ public class Searching {
         return result;
     }
 
-    private void addMathQueries(String mathQuery, BooleanQuery bq, MathTokenizer.MathMLType variant) {
-        MathTokenizer mt = new MathTokenizer(new StringReader(mathQuery), false, variant);
-        try {
-            mt.reset();
-        } catch (IOException ex) {
-            LOG.fatal(ex);
+    private void addMathQuery(ParsedQuery parsedQuery, Map<String, Float> queryForms, MathTokenizer.MathMLType variant, IndexReader reader) throws IOException {
+        Map<String, Float> kept = MathQueryPrunerHolder.PRUNER.prune(queryForms, getMathField(variant), reader);
+        int pruned = queryForms.size() - kept.size();
+        if (pruned > 0) {
+            LOG.debug("Pruned {} of {} {} formulae.", pruned, queryForms.size(), variant);
         }
-        Map<String, Float> queryForms = mt.getQueryFormulae();
-        List<Query> cQueries = getMathQueries(queryForms, variant);
+        BooleanQuery bq = new BooleanQuery();
+        List<Query> cQueries = getMathQueries(kept, variant);
         for (Query q : cQueries) {
             bq.add(q, BooleanClause.Occur.SHOULD);
         }
+        parsedQuery.addMathQuery(bq, pruned);
+    }
+
+    private static String getMathField(MathTokenizer.MathMLType type) {
+        return (type == MathTokenizer.MathMLType.PRESENTATION ? "p" : "c") + "math";
     }
 
     private List<Query> getMathQueries(Map<String, Float> queryForms, MathTokenizer.MathMLType type) {
-        String field = (type == MathTokenizer.MathMLType.PRESENTATION ? "p" : "c") + "math";
+        String field = getMathField(type);
         List<Query> result = new ArrayList<>();
         Iterator<Map.Entry<String, Float>> it = queryForms.entrySet().iterator();
         while (it.hasNext()) {
@@ -211,29 +481,44 @@ public class Searching {
     }
 
     /**
-     * Constructs the list with the results.
+     * Constructs the list with the results. Snippets are extracted in parallel,
+     * results whose snippet is not extracted within the snippet timeout get a
+     * placeholder. Only the given stored fields and the fields needed for
+     * snippets are read, other stored fields (e.g. many fields of formula
+     * documents or stored document source) are not decoded.
      *
+     * @param indexSearcher
      * @param offset
      * @param limit
      * @param docs
-     * @param query
+     * @param top top hits with the query they were found by
      * @param debug
+     * @param fields stored fields the results are built from
      * @return
      * @throws IOException
      */
-    private List<Result> getResults(int offset, int limit, List<ScoreDoc> docs, Query query, boolean debug) throws IOException {
+    private List<Result> getResults(IndexSearcher indexSearcher, int offset, int limit, List<ScoreDoc> docs, TopHits top, boolean debug, Set<String> fields) throws IOException {
+        Query query = top.query;
         List<Result> results = new ArrayList<>();
-        List<ScoreDoc> temp = docs.subList(offset, Math.min(offset + limit, docs.size()));
+        List<Callable<String>> snippetTasks = new ArrayList<>();
+        SnippetQuery snippetQuery = null;
+        List<ScoreDoc> temp = docs.subList(Math.min(offset, docs.size()), docs.size());
+        Set<String> loadedFields = fields;
+        if (limit <= 100) {
+            loadedFields = new HashSet<>(fields);
+            loadedFields.addAll(SNIPPET_FIELDS);
+        }
 
         for (ScoreDoc sd : temp) {
-            Document document = indexSearcher.doc(sd.doc);
+            DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor(loadedFields);
+            indexSearcher.doc(sd.doc, visitor);
+            Document document = visitor.getDocument();
             String fullLocalPath = document.get("path");
-            String dataPath = storagePath + fullLocalPath;
 
             String title = document.get("title");
             String info = "score = " + sd.score;
             if (debug) {
-                info += "\nExplanation: \n" + indexSearcher.explain(query, sd.doc);
+                info += "\nExplanation: \n" + top.explain(indexSearcher, sd.doc);
             }
             //SPECIAL FOR ARXMLIV
             String id = document.get("arxivId");
@@ -245,24 +530,308 @@ public class Searching {
 
             String snippet = "Snippets disabled";
             if (limit <= 100) {
-                InputStream snippetIs = getInputStreamFromDataPath(document);
-                if (snippetIs != null) {
-                    SnippetExtractor extractor = new NiceSnippetExtractor(snippetIs, query, sd.doc, indexSearcher.getIndexReader());
-                    snippet = extractor.getSnippet();
-                } else {
-                    LOG.info("Stream is null for snippet extraction {}",dataPath);
-                }
-                if (snippetIs != null) {
-                    snippetIs.close();
+                if (snippetQuery == null) {
+                    snippetQuery = new SnippetQuery(query, indexSearcher.getIndexReader());
                 }
+                snippetTasks.add(new SnippetTask(document, snippetQuery, sd.doc, indexSearcher.getIndexReader()));
             } else {
                 snippet = "Snippets disabled for limit > 100";
             }
             results.add(new Result(title, fullLocalPath, info, id, snippet));
         }
+
+        if (!snippetTasks.isEmpty()) {
+            List<String> snippets = getSnippets(snippetTasks);
+            for (int i = 0; i < snippets.size(); i++) {
+                results.get(i).setSnippet(snippets.get(i));
+            }
+        }
         return results;
     }
 
+    /**
+     * Runs snippet extraction on the snippet executor and waits at most the
+     * snippet timeout for it.
+     *
+     * @param tasks snippet extraction tasks
+     * @return snippets in the order of the tasks
+     */
+    private List<String> getSnippets(List<Callable<String>> tasks) {
+        List<String> result = new ArrayList<>();
+        int timeout = Settings.getSnippetTimeout();
+        try {
+            List<Future<String>> futures = timeout > 0
+                    ? SnippetExecutorHolder.EXECUTOR.invokeAll(tasks, timeout, TimeUnit.MILLISECONDS)
+                    : SnippetExecutorHolder.EXECUTOR.invokeAll(tasks);
+            int missed = 0;
+            for (Future<String> future : futures) {
+                String snippet = SNIPPET_PLACEHOLDER;
+                if (future.isCancelled()) {
+                    missed++;
+                } else {
+                    try {
+                        snippet = future.get();
+                    } catch (ExecutionException ex) {
+                        LOG.error(ex.getCause());
+                    }
+                }
+                result.add(snippet);
+            }
+            if (missed > 0) {
+                LOG.debug("{} of {} snippets not extracted within {} ms.", missed, tasks.size(), timeout);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            while (result.size() < tasks.size()) {
+                result.add(SNIPPET_PLACEHOLDER);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Extracts snippet of one hit. Task holds a reference to the index reader
+     * while running, so the reader is not closed under a task that missed the
+     * timeout.
+     */
+    private class SnippetTask implements Callable<String> {
+
+        private final Document document;
+        private final SnippetQuery snippetQuery;
+        private final int docNumber;
+        private final IndexReader indexReader;
+
+        SnippetTask(Document document, SnippetQuery snippetQuery, int docNumber, IndexReader indexReader) {
+            this.document = document;
+            this.snippetQuery = snippetQuery;
+            this.docNumber = docNumber;
+            this.indexReader = indexReader;
+        }
+
+        @Override
+        public String call() throws IOException {
+            if (!indexReader.tryIncRef()) {
+                return SNIPPET_PLACEHOLDER;
+            }
+            try (InputStream snippetIs = getSnippetSource(document)) {
+                if (snippetIs == null) {
+                    LOG.info("Stream is null for snippet extraction {}", storagePath + document.get("path"));
+                    return "Snippets disabled";
+                }
+                BytesRef offsets = document.getBinaryValue("formulaoffsets");
+                SnippetExtractor extractor = new NiceSnippetExtractor(snippetIs, snippetQuery, docNumber,
+                        offsets == null ? null : FormulaOffsets.fromBytes(offsets));
+                return extractor.getSnippet();
+            } finally {
+                indexReader.decRef();
+            }
+        }
+    }
+
+    /**
+     * @return number of searches that ran out of time and returned partial
+     * results
+     */
+    public static long getBudgetTrips() {
+        return BUDGET_TRIPS.get();
+    }
+
+    /**
+     * @return cache of formulae extracted from math queries, shared by all
+     * searches
+     */
+    public static MathQueryCache getMathQueryCache() {
+        return MathQueryCacheHolder.CACHE;
+    }
+
+    private static class MathQueryCacheHolder {
+
+        private static final MathQueryCache CACHE = new MathQueryCache(Settings.getMathQueryCacheSize());
+    }
+
+    /**
+     * @return cache of the top hits of recent queries, shared by all searches
+     */
+    public static QueryResultCache getQueryResultCache() {
+        return QueryResultCacheHolder.CACHE;
+    }
+
+    private static class QueryResultCacheHolder {
+
+        private static final QueryResultCache CACHE = new QueryResultCache(Settings.getQueryCacheSize(), Settings.getQueryCacheTTL());
+    }
+
+    /**
+     * @return cache of zip archives used for snippet extraction, shared by all
+     * searches
+     */
+    public static ZipFileCache getZipFileCache() {
+        return ZipFileCacheHolder.CACHE;
+    }
+
+    private static class ZipFileCacheHolder {
+
+        private static final ZipFileCache CACHE = new ZipFileCache(Settings.getZipCacheSize(), Settings.getZipCacheIdleTime());
+    }
+
+    /**
+     * Executor shared by all searches, created on first use. Its queue is
+     * bounded, when it is full, snippet is extracted by the searching thread.
+     */
+    private static class SnippetExecutorHolder {
+
+        private static final ExecutorService EXECUTOR = createExecutor("snippet", Settings.getSnippetThreads());
+    }
+
+    /**
+     * Executor shared by all searches for extracting formulae of query variants
+     * and running parts of split searches, created on first use.
+     */
+    private static class QueryExecutorHolder {
+
+        private static final ExecutorService EXECUTOR = createExecutor("query", Settings.getQueryThreads());
+    }
+
+    private static class MathQueryPrunerHolder {
+
+        private static final MathQueryPruner PRUNER = new MathQueryPruner(Settings.getMathMinBoost(), Settings.getMathMaxClauses(), Settings.getMathMaxDocFreq());
+    }
+
+    /**
+     * Executor shared by all searches for searching segments concurrently,
+     * created on first use.
+     */
+    private static class SegmentExecutorHolder {
+
+        private static final ExecutorService EXECUTOR = createExecutor("segment", Settings.getSegmentThreads());
+    }
+
+    /**
+     * Creates executor with daemon threads and bounded queue, when the queue is
+     * full, the task is run by the submitting thread.
+     */
+    private static ExecutorService createExecutor(final String name, int threads) {
+        final AtomicInteger counter = new AtomicInteger(0);
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 100), r -> {
+                    Thread thread = new Thread(r, name + "-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Top hits together with the query they were found by.
+     */
+    private static class TopHits {
+
+        private final Query query;
+        private final List<Query> parts;
+        private final TopDocs docs;
+
+        /**
+         * @param parts queries of the split search parts whose scores were
+         * summed, null if the hits were found by the query itself
+         */
+        TopHits(Query query, List<Query> parts, TopDocs docs) {
+            this.query = query;
+            this.parts = parts;
+            this.docs = docs;
+        }
+
+        /**
+         * Explains the score of the hit. Hits of split search are explained as
+         * the sum of their scores in the matched parts, the way
+         * {@link MergingSearcher} scores them.
+         */
+        Explanation explain(IndexSearcher searcher, int doc) throws IOException {
+            if (parts == null) {
+                return searcher.explain(query, doc);
+            }
+            Explanation result = new Explanation(0, "sum of the matched parts of split search:");
+            float sum = 0;
+            for (Query part : parts) {
+                Explanation explanation = searcher.explain(part, doc);
+                if (explanation.isMatch()) {
+                    sum += explanation.getValue();
+                    result.addDetail(explanation);
+                }
+            }
+            result.setValue(sum);
+            return result;
+        }
+    }
+
+    /**
+     * Math and text parts of the parsed query.
+     */
+    private static class ParsedQuery {
+
+        private final List<Query> mathQueries = new ArrayList<>();
+        private Query textQuery;
+        private int prunedClauses = 0;
+
+        void addMathQuery(BooleanQuery query, int pruned) {
+            mathQueries.add(query);
+            prunedClauses += pruned;
+        }
+
+        /**
+         * @return number of formulae removed from the math queries by pruning
+         */
+        int getPrunedClauses() {
+            return prunedClauses;
+        }
+
+        void setTextQuery(Query textQuery) {
+            this.textQuery = textQuery;
+        }
+
+        /**
+         * @return math query for each searched MathML variant
+         */
+        List<Query> getMathQueries() {
+            return mathQueries;
+        }
+
+        Query getTextQuery() {
+            return textQuery;
+        }
+
+        /**
+         * @return queries searched separately by split search, the formulae
+         * followed by the text query if there is one
+         */
+        List<Query> getParts() {
+            List<Query> parts = new ArrayList<>(mathQueries);
+            if (textQuery != null) {
+                parts.add(textQuery);
+            }
+            return parts;
+        }
+
+        /**
+         * @return query in form of (formula_1 or ... or formula_n) and (text
+         * queries)
+         */
+        Query toQuery() {
+            BooleanQuery result = new BooleanQuery();
+            if (!mathQueries.isEmpty()) {
+                BooleanQuery bq = new BooleanQuery();
+                for (Query mathQuery : mathQueries) {
+                    for (BooleanClause clause : ((BooleanQuery) mathQuery).clauses()) {
+                        bq.add(clause);
+                    }
+                }
+                result.add(bq, BooleanClause.Occur.MUST);
+            }
+            if (textQuery != null) {
+                result.add(textQuery, BooleanClause.Occur.MUST);
+            }
+            return result;
+        }
+    }
+
     /**
      * Prints results to standard output.
      *
@@ -320,6 +889,23 @@ public class Searching {
         }
     }
 
+    /**
+     * Returns source of the document for snippet extraction, the compressed
+     * source stored in the index if present, the original file otherwise.
+     */
+    private InputStream getSnippetSource(Document document) {
+        BytesRef stored = document.getBinaryValue("snippetsource");
+        if (stored != null) {
+            try {
+                return new ByteArrayInputStream(CompressionTools.decompress(stored));
+            } catch (DataFormatException ex) {
+                LOG.error("Cannot decompress stored source of {}", document.get("path"));
+                LOG.error(ex);
+            }
+        }
+        return getInputStreamFromDataPath(document);
+    }
+
     private InputStream getInputStreamFromDataPath(Document document) {
 
         InputStream is = null;
@@ -333,15 +919,7 @@ public class Searching {
             }
             if (dataPath.endsWith("zip")) {
                 if (f.exists()) {
-                    String archivePath = document.get("archivepath");
-                    ZipFile zipFile = new ZipFile(dataPath);
-                    Enumeration e = zipFile.entries();
-                    while (e.hasMoreElements() && is == null) {
-                        ZipEntry entry = (ZipEntry) e.nextElement();
-                        if (entry.getName().equals(archivePath)) {
-                            is = zipFile.getInputStream(entry);
-                        }
-                    }
+                    is = ZipFileCacheHolder.CACHE.getInputStream(f.toPath(), document.get("archivepath"));
                 } else {
                     String unzippedPath = dataPath.substring(0, dataPath.lastIndexOf(File.separator)) + File.separator + document.get("archivepath");
                     f = new File(unzippedPath);
@@ -351,7 +929,7 @@ public class Searching {
                 }
             }
 
-        } catch (FileNotFoundException ex) {
+        } catch (IOException ex) {
             LOG.fatal(ex);
         } finally {
             return is;
@@ -0,0 +1,122 @@
+package cz.muni.fi.mias.search;
+
+import cz.muni.fi.mias.Settings;
+import cz.muni.fi.mias.math.MathTokenizer;
+import cz.muni.fi.mias.math.PayloadHelper;
+import cz.muni.fi.mias.search.snippets.Span;
+import cz.muni.fi.mias.search.snippets.SnippetQuery;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.search.spans.Spans;
+
+/**
+ * Compares the original resolution of the formula spans of snippet hits, which
+ * rewrote the query for each hit and scanned spans in all segments up to the
+ * end of the segment containing the hit, with {@link SnippetQuery} shared by
+ * all hits of the page. Only span resolution is timed, documents are not read.
+ */
+public class SnippetBenchmark {
+
+    private static final Logger LOG = LogManager.getLogger(SnippetBenchmark.class);
+    private static final int ROUNDS = 10;
+    private final String queryFile;
+    private final int hits;
+
+    /**
+     * @param queryFile file with the query in the format accepted by
+     * {@link Searching}
+     * @param hits number of top hits forming the page
+     */
+    public SnippetBenchmark(String queryFile, String hits) {
+        this.queryFile = queryFile;
+        this.hits = Integer.parseInt(hits);
+    }
+
+    public void run() {
+        try (DirectoryReader reader = DirectoryReader.open(Settings.getDirectoryType().open(Settings.getIndexDir()))) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            String queryString = new String(Files.readAllBytes(Paths.get(queryFile)), StandardCharsets.UTF_8);
+            Query query = new Searching(searcher, "").parseQuery(queryString, MathTokenizer.MathMLType.BOTH, reader);
+            ScoreDoc[] page = searcher.search(query, hits).scoreDocs;
+            LOG.info("Benchmarking snippet span resolution on {} hits in {} segments.", page.length, reader.leaves().size());
+
+            long[] spans = new long[2];
+            long[] times = new long[2];
+            for (int round = 0; round <= ROUNDS; round++) {
+                long start = System.nanoTime();
+                spans[0] = resolveOriginal(query, page, reader);
+                long original = System.nanoTime() - start;
+                start = System.nanoTime();
+                spans[1] = resolveShared(query, page, reader);
+                long shared = System.nanoTime() - start;
+                if (round > 0) {
+                    times[0] += original;
+                    times[1] += shared;
+                }
+            }
+            LOG.info("Original: {} ms per page, {} spans", times[0] / ROUNDS / 1000000.0, spans[0]);
+            LOG.info("Shared query: {} ms per page, {} spans", times[1] / ROUNDS / 1000000.0, spans[1]);
+            if (spans[0] != spans[1]) {
+                LOG.error("Span counts differ: {} and {}", spans[0], spans[1]);
+            }
+        } catch (IOException ex) {
+            LOG.fatal(ex);
+        }
+    }
+
+    private long resolveOriginal(Query query, ScoreDoc[] page, DirectoryReader reader) throws IOException {
+        long result = 0;
+        for (ScoreDoc hit : page) {
+            SnippetQuery snippetQuery = new SnippetQuery(query, reader);
+            for (SpanTermQuery q : snippetQuery.getSpanTermQueries()) {
+                result += scanSegments(q, hit.doc, reader).size();
+            }
+        }
+        return result;
+    }
+
+    private List<Span> scanSegments(SpanTermQuery q, int docNumber, DirectoryReader reader) throws IOException {
+        List<Span> result = new ArrayList<>();
+        for (AtomicReaderContext context : reader.leaves()) {
+            Spans spans = q.getSpans(context, null, new HashMap<>());
+            spans.skipTo(docNumber - context.docBase - 1);
+            boolean found = false;
+            boolean cont = true;
+            while (cont) {
+                if (docNumber == context.docBase + spans.doc()) {
+                    found = true;
+                    result.add(new Span(docNumber, q.toString(), spans.start(), PayloadHelper.decodeFloatFromShortBytes(spans.getPayload().iterator().next())));
+                }
+                if (!spans.next()) {
+                    cont = false;
+                }
+            }
+            if (found) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    private long resolveShared(Query query, ScoreDoc[] page, DirectoryReader reader) throws IOException {
+        long result = 0;
+        SnippetQuery snippetQuery = new SnippetQuery(query, reader);
+        for (ScoreDoc hit : page) {
+            result += snippetQuery.getSpans(hit.doc).size();
+        }
+        return result;
+    }
+}
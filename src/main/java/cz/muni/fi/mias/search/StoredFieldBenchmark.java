@@ -0,0 +1,81 @@
+package cz.muni.fi.mias.search;
+
+import cz.muni.fi.mias.Settings;
+import cz.muni.fi.mias.math.MathTokenizer;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+
+/**
+ * Compares reading of all stored fields of the top hits of a query, as results
+ * used to be built, with reading only {@link Searching#RESULT_FIELDS}, as when
+ * exporting results without snippets.
+ */
+public class StoredFieldBenchmark {
+
+    private static final Logger LOG = LogManager.getLogger(StoredFieldBenchmark.class);
+    private static final int ROUNDS = 10;
+    private final String queryFile;
+    private final int hits;
+
+    /**
+     * @param queryFile file with the query in the format accepted by
+     * {@link Searching}
+     * @param hits number of top hits whose stored fields are read
+     */
+    public StoredFieldBenchmark(String queryFile, String hits) {
+        this.queryFile = queryFile;
+        this.hits = Integer.parseInt(hits);
+    }
+
+    public void run() {
+        try (DirectoryReader reader = DirectoryReader.open(Settings.getDirectoryType().open(Settings.getIndexDir()))) {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            String queryString = new String(Files.readAllBytes(Paths.get(queryFile)), StandardCharsets.UTF_8);
+            Query query = new Searching(searcher, "").parseQuery(queryString, MathTokenizer.MathMLType.BOTH, reader);
+            ScoreDoc[] page = searcher.search(query, hits).scoreDocs;
+            LOG.info("Benchmarking stored field reading of {} hits.", page.length);
+
+            long[] fields = new long[2];
+            long[] times = new long[2];
+            for (int round = 0; round <= ROUNDS; round++) {
+                for (int selective = 0; selective < 2; selective++) {
+                    long start = System.nanoTime();
+                    fields[selective] = read(searcher, page, selective == 1);
+                    if (round > 0) {
+                        times[selective] += System.nanoTime() - start;
+                    }
+                }
+            }
+            LOG.info("All fields: {} ms, {} fields read", times[0] / ROUNDS / 1000000.0, fields[0]);
+            LOG.info("Result fields: {} ms, {} fields read", times[1] / ROUNDS / 1000000.0, fields[1]);
+        } catch (IOException ex) {
+            LOG.fatal(ex);
+        }
+    }
+
+    private long read(IndexSearcher searcher, ScoreDoc[] page, boolean selective) throws IOException {
+        long result = 0;
+        for (ScoreDoc hit : page) {
+            Document document;
+            if (selective) {
+                DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor(Searching.RESULT_FIELDS);
+                searcher.doc(hit.doc, visitor);
+                document = visitor.getDocument();
+            } else {
+                document = searcher.doc(hit.doc);
+            }
+            result += document.getFields().size();
+        }
+        return result;
+    }
+}
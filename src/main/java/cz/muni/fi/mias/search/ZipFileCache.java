@@ -0,0 +1,264 @@
+package cz.muni.fi.mias.search;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Bounded cache of open zip archives. Archives are evicted when the cache is
+ * full (least recently used first) or when they were not used for given time.
+ * Evicted archive is closed as soon as all streams read from it are closed.
+ * Cache is thread-safe.
+ */
+public class ZipFileCache implements Closeable {
+
+    private static final Logger LOG = LogManager.getLogger(ZipFileCache.class);
+    private final int maxSize;
+    private final long maxIdleNanos;
+    private final Map<Path, CachedZipFile> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+
+    /**
+     * @param maxSize maximum number of open archives
+     * @param maxIdleTime time in seconds after which unused archive is closed
+     */
+    public ZipFileCache(int maxSize, long maxIdleTime) {
+        this.maxSize = maxSize;
+        this.maxIdleNanos = TimeUnit.SECONDS.toNanos(maxIdleTime);
+    }
+
+    /**
+     * Opens stream of the given archive entry. Stream has to be closed so the
+     * archive can be closed after eviction.
+     *
+     * @param zip path to the zip archive
+     * @param entryName name of the entry
+     * @return stream of the entry or null if the archive does not contain it
+     * @throws IOException if the archive cannot be opened
+     */
+    public InputStream getInputStream(Path zip, String entryName) throws IOException {
+        CachedZipFile cached = acquire(zip);
+        try {
+            ZipEntry entry = cached.zipFile.getEntry(entryName);
+            if (entry != null) {
+                InputStream is = new EntryInputStream(cached.zipFile.getInputStream(entry), cached);
+                cached = null;
+                return is;
+            }
+            return null;
+        } finally {
+            if (cached != null) {
+                release(cached);
+            }
+        }
+    }
+
+    private CachedZipFile acquire(Path zip) throws IOException {
+        synchronized (cache) {
+            evictIdle();
+            CachedZipFile cached = cache.get(zip);
+            if (cached != null) {
+                hits.incrementAndGet();
+                cached.acquire();
+                return cached;
+            }
+        }
+
+        misses.incrementAndGet();
+        CachedZipFile opened = new CachedZipFile(new ZipFile(zip.toFile()));
+        List<CachedZipFile> toClose = new ArrayList<>();
+        CachedZipFile result;
+        synchronized (cache) {
+            result = cache.get(zip);
+            if (result == null) {
+                result = opened;
+                cache.put(zip, opened);
+                Iterator<CachedZipFile> it = cache.values().iterator();
+                while (cache.size() > maxSize && it.hasNext()) {
+                    CachedZipFile eldest = it.next();
+                    it.remove();
+                    evictions.incrementAndGet();
+                    if (eldest.evict()) {
+                        toClose.add(eldest);
+                    }
+                }
+            } else {
+                toClose.add(opened);
+            }
+            result.acquire();
+        }
+        for (CachedZipFile cached : toClose) {
+            cached.close();
+        }
+        return result;
+    }
+
+    private void release(CachedZipFile cached) {
+        boolean close;
+        synchronized (cache) {
+            close = cached.release();
+        }
+        if (close) {
+            cached.close();
+        }
+    }
+
+    /**
+     * Removes archives idle for longer than the maximum idle time. Caller has
+     * to hold the lock of the cache, unused archives are closed.
+     */
+    private void evictIdle() {
+        long now = System.nanoTime();
+        Iterator<CachedZipFile> it = cache.values().iterator();
+        while (it.hasNext()) {
+            CachedZipFile cached = it.next();
+            if (now - cached.lastUsed > maxIdleNanos) {
+                it.remove();
+                evictions.incrementAndGet();
+                if (cached.evict()) {
+                    cached.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return number of requests served by an already open archive
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of requests that had to open the archive
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of archives removed from the cache
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return number of archives currently in the cache
+     */
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * Evicts all archives. Archives with open streams are closed when the
+     * streams are closed.
+     */
+    @Override
+    public void close() {
+        List<CachedZipFile> toClose = new ArrayList<>();
+        synchronized (cache) {
+            for (CachedZipFile cached : cache.values()) {
+                evictions.incrementAndGet();
+                if (cached.evict()) {
+                    toClose.add(cached);
+                }
+            }
+            cache.clear();
+        }
+        for (CachedZipFile cached : toClose) {
+            cached.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "open: " + size() + ", hits: " + hits + ", misses: " + misses + ", evictions: " + evictions;
+    }
+
+    /**
+     * Open archive with the number of streams read from it. All fields except
+     * zipFile are guarded by the lock of the cache.
+     */
+    private static class CachedZipFile {
+
+        private final ZipFile zipFile;
+        private int references = 0;
+        private boolean evicted = false;
+        private long lastUsed = System.nanoTime();
+
+        CachedZipFile(ZipFile zipFile) {
+            this.zipFile = zipFile;
+        }
+
+        void acquire() {
+            references++;
+            lastUsed = System.nanoTime();
+        }
+
+        /**
+         * @return true if the archive has to be closed
+         */
+        boolean release() {
+            references--;
+            lastUsed = System.nanoTime();
+            return evicted && references == 0;
+        }
+
+        /**
+         * @return true if the archive has to be closed
+         */
+        boolean evict() {
+            evicted = true;
+            return references == 0;
+        }
+
+        void close() {
+            try {
+                zipFile.close();
+            } catch (IOException ex) {
+                LOG.error(ex);
+            }
+        }
+    }
+
+    private class EntryInputStream extends FilterInputStream {
+
+        private final CachedZipFile cached;
+        private boolean closed = false;
+
+        EntryInputStream(InputStream in, CachedZipFile cached) {
+            super(in);
+            this.cached = cached;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                try {
+                    super.close();
+                } finally {
+                    release(cached);
+                }
+            }
+        }
+    }
+}
@@ -1,28 +1,22 @@
 package cz.muni.fi.mias.search.snippets;
 
+import cz.muni.fi.mias.FormulaOffsets;
 import cz.muni.fi.mias.MIaSUtils;
 import cz.muni.fi.mias.Settings;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
-import org.apache.lucene.search.BooleanClause;
-import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.search.spans.SpanTermQuery;
-import org.apache.lucene.search.spans.Spans;
 
 /**
  * Extracts fragments around the query match and highlights it. Two most
@@ -32,6 +26,8 @@ import org.apache.lucene.search.spans.Spans;
  */
 public class NiceSnippetExtractor implements SnippetExtractor {
     private static final Logger LOG = LogManager.getLogger(NiceSnippetExtractor.class);
+    private SnippetQuery snippetQuery;
+    private FormulaOffsets formulaOffsets;
     private Query query;
     private int docNumber;
     private IndexReader indexReader;
@@ -44,96 +40,71 @@ public class NiceSnippetExtractor implements SnippetExtractor {
         this.indexReader = indexReader;
     }
 
+    /**
+     * Constructs extractor sharing the query state with other hits of the same
+     * result page.
+     *
+     * @param in source of the document
+     * @param snippetQuery query state of the result page
+     * @param docNumber document number of the hit in the whole index
+     */
+    public NiceSnippetExtractor(InputStream in, SnippetQuery snippetQuery, int docNumber) {
+        this(in, snippetQuery, docNumber, null);
+    }
+
+    /**
+     * Constructs extractor using formula offsets stored in the index, so the
+     * document does not have to be scanned for formulae.
+     *
+     * @param in source of the document
+     * @param snippetQuery query state of the result page
+     * @param docNumber document number of the hit in the whole index
+     * @param formulaOffsets offsets of the formulae of the document, null if
+     * they are not known
+     */
+    public NiceSnippetExtractor(InputStream in, SnippetQuery snippetQuery, int docNumber, FormulaOffsets formulaOffsets) {
+        this.inputStream = in;
+        this.snippetQuery = snippetQuery;
+        this.docNumber = docNumber;
+        this.formulaOffsets = formulaOffsets;
+    }
+
     @Override
     public String getSnippet() {
         try {
-            List<Query> stqs = new ArrayList<>();
-            List<Query> nstqs = new ArrayList<>();
-            getSpanTermQueries(query, stqs, nstqs);
-            List<Span> formSpans = new ArrayList<>();
-            for (Query q : stqs) {
-                for (AtomicReaderContext context : indexReader.leaves()) {
-                    Spans spans = ((SpanTermQuery) q).getSpans(context, null, new HashMap());
-                    spans.skipTo(docNumber - context.docBase - 1);
-                    boolean cont = true;
-                    boolean contextFound = false;
-                    while (cont) {
-                        int contextSpanDocNumber = context.docBase + spans.doc();
-//                        System.out.println(contextSpanDocNumber);
-                        if (docNumber == contextSpanDocNumber) {
-                            contextFound = true;
-                            cont = docNumber - contextSpanDocNumber >= 0;
-                            Collection<byte[]> payloads = spans.getPayload();
-                            formSpans.add(new Span(spans.doc(), q.toString(), spans.start(), cz.muni.fi.mias.math.PayloadHelper.decodeFloatFromShortBytes(payloads.iterator().next())));
-                        }
-                        if (!spans.next()) {
-                            cont = false;
-                        }
-                    }
-                    if (contextFound) {
-                        break;
-                    }
-                }
+            if (snippetQuery == null) {
+                snippetQuery = new SnippetQuery(query, indexReader);
             }
-
-            return getSnippet(formSpans, nstqs);
+            List<Span> formSpans = snippetQuery.getSpans(docNumber);
+            return getSnippet(formSpans, snippetQuery.getNonSpanTermQueries());
         } catch (IOException ex) {
             LOG.fatal(ex);
         }
         return "";
     }
 
-    private void getSpanTermQueries(Query query, List<Query> spanTermQueries, List<Query> nonSpamTermQueries) throws IOException {
-        Query q = query.rewrite(indexReader);
-        if (q instanceof SpanTermQuery) {
-            spanTermQueries.add(q);
-        } else {
-            if (q instanceof BooleanQuery) {
-                BooleanClause[] bcs = ((BooleanQuery) q).getClauses();
-                for (BooleanClause bc : bcs)
-                {
-                    getSpanTermQueries(bc.getQuery(), spanTermQueries, nonSpamTermQueries);
-                }
-            } else {
-                nonSpamTermQueries.add(q);
-            }
-        }
-    }
-
     private String getSnippet(List<Span> spans, List<Query> nstqs) throws FileNotFoundException, IOException {
-        String content = MIaSUtils.getContent(inputStream);
-
-        List<Snippet> snippets = getDocSnippets(spans, nstqs, content);
+        return getSnippet(MIaSUtils.getContent(inputStream), spans, nstqs, formulaOffsets);
+    }
 
-        String result = "";
+    static String getSnippet(String content, List<Span> spans, List<Query> nstqs, FormulaOffsets formulaOffsets) {
+        List<Snippet> snippets = getDocSnippets(spans, nstqs, content, formulaOffsets);
 
-        Iterator<Snippet> it = snippets.iterator();
-        while (it.hasNext()) {
-            String text = it.next().getText();
-            if (isDots(result, false) && isDots(text, true)) {
-                result += " " + text.substring(3);
-            } else {
-                result += " " + text;
-            }
+        StringBuilder result = new StringBuilder();
+        for (Snippet snippet : snippets) {
+            String text = snippet.getText();
+            boolean dots = endsWithDots(result) && text.startsWith("...");
+            result.append(' ').append(text, dots ? 3 : 0, text.length());
         }
-        return result;
+        return result.toString();
     }
 
-    private static boolean isDots(String text, boolean beggining) {
-        int start;
-        int end;
-        if (beggining) {
-            start = 0;
-            end = 3;
-        } else {
-            start = Math.max(0, text.length() - 3);
-            end = text.length();
-        }
-        String dots = text.substring(start, end);
-        return dots.equals("...");
+    private static boolean endsWithDots(StringBuilder text) {
+        int length = text.length();
+        return length >= 3 && text.charAt(length - 1) == '.' && text.charAt(length - 2) == '.' && text.charAt(length - 3) == '.';
     }
 
-    private List<Snippet> getDocSnippets(List<Span> spans, List<Query> nstqs, String content) {
+    private static List<Snippet> getDocSnippets(List<Span> spans, List<Query> nstqs, String content, FormulaOffsets formulaOffsets) {
         List<Snippet> result = new ArrayList<>();
 
         if (spans != null && !spans.isEmpty()) {
@@ -150,22 +121,17 @@ public class NiceSnippetExtractor implements SnippetExtractor {
                 prevPosition = currentPosition;
 
             }
-            String mathStart = "<math";
-            String mathEnd = "</math>";
+            FormulaOffsets formulae = formulaOffsets;
+            if (formulae == null || !formulae.matches(content)) {
+                formulae = FormulaOffsets.build(content);
+            }
             for (int j = 0; j <= 1 && j < spans.size(); j++) {
                 int pos = spans.get(j).getPosition();
-                int start = 0;
-                int end = 0;
-                start = content.indexOf(mathStart, start + 1);
-                if (start == -1) {
-                    mathStart = "<m:math";
-                    mathEnd = "</m:math>";
+                if (pos >= formulae.size()) {
+                    continue;
                 }
-                start = 0;
-                for (int i = 0; i <= pos; i++) {
-                    start = content.indexOf(mathStart, start + 1);
-                }
-                end = content.indexOf(mathEnd, start) + mathEnd.length();
+                int start = formulae.getStart(pos);
+                int end = formulae.getEnd(pos);
                 String snipp = "<span class=\"highlight\">"
                         + content.substring(start, end).replace("display=\"block\"", "display=\"inline\"")
                         + "</span>";
@@ -183,6 +149,9 @@ public class NiceSnippetExtractor implements SnippetExtractor {
         final String tagHighlightEnd = "</span>";
         for (Term t : terms) {
             String text = t.text();
+            if (text.isEmpty()) {
+                continue;
+            }
             String highlightIn;
             //first highlight in existing snippets
             boolean newSnippet = true;
@@ -202,13 +171,11 @@ public class NiceSnippetExtractor implements SnippetExtractor {
                     }
                 }
             }
-            highlightIn = content.toLowerCase();
-            //
             if (newSnippet && result.size() <= 4) {
                 int start = 0;
                 boolean added = false;
                 while (!added) {
-                    start = highlightIn.indexOf(text, start);
+                    start = indexOfIgnoreCase(content, text, start);
                     if (start != -1) {
                         if (!isInTag(content, start)) {
                             int end = start + text.length();
@@ -232,10 +199,29 @@ public class NiceSnippetExtractor implements SnippetExtractor {
         return result;
     }
 
-    private boolean isUniqueShippet(Snippet snippet, List<Snippet> result) {
+    /**
+     * Case insensitive {@link String#indexOf(String, int)}, the document does
+     * not have to be lowercased for each term.
+     */
+    private static int indexOfIgnoreCase(String content, String text, int fromIndex) {
+        char lower = Character.toLowerCase(text.charAt(0));
+        char upper = Character.toUpperCase(text.charAt(0));
+        int last = content.length() - text.length();
+        for (int i = Math.max(fromIndex, 0); i <= last; i++) {
+            char c = content.charAt(i);
+            if ((c == lower || c == upper || Character.toLowerCase(c) == lower)
+                    && content.regionMatches(true, i, text, 0, text.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isUniqueShippet(Snippet snippet, List<Snippet> result) {
+        String text = removeWhitespace(snippet.getText());
         boolean unique = true;
         for (Snippet s : result) {
-            if (s.getText().replaceAll("\\s", "").contains(snippet.getText().replaceAll("\\s", ""))) {
+            if (removeWhitespace(s.getText()).contains(text)) {
                 unique = false;
                 break;
             }
@@ -243,7 +229,18 @@ public class NiceSnippetExtractor implements SnippetExtractor {
         return unique;
     }
 
-    private void addSurround(Snippet snippet, String content) {
+    private static String removeWhitespace(String text) {
+        StringBuilder sb = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\u000B' && c != '\f' && c != '\r') {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void addSurround(Snippet snippet, String content) {
         int start = snippet.getStart();
         int end = snippet.getEnd();
         int preStart = Math.max(content.lastIndexOf("." + Settings.eol, start) + Settings.eol.length() + 1, Math.max(content.lastIndexOf(". ", start) + 2, content.lastIndexOf(">", start) + 1));
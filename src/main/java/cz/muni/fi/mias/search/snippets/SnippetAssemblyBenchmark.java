@@ -0,0 +1,83 @@
+package cz.muni.fi.mias.search.snippets;
+
+import cz.muni.fi.mias.FormulaOffsets;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+
+/**
+ * Measures how snippet assembly of {@link NiceSnippetExtractor} scales with the
+ * size of the document. The given xhtml document is repeated to get larger
+ * inputs, the last two formulae of each input and the given term are
+ * highlighted, so the whole input has to be searched. Assembly scanning the
+ * input for formulae is compared with assembly using formula offsets computed
+ * in advance as at indexing time. No index is needed.
+ */
+public class SnippetAssemblyBenchmark {
+
+    private static final Logger LOG = LogManager.getLogger(SnippetAssemblyBenchmark.class);
+    private static final int ROUNDS = 10;
+    private static final int MAX_COPIES = 16;
+    private final String inputFile;
+    private final String term;
+
+    /**
+     * @param inputFile xhtml document
+     * @param term text term to highlight
+     */
+    public SnippetAssemblyBenchmark(String inputFile, String term) {
+        this.inputFile = inputFile;
+        this.term = term.toLowerCase();
+    }
+
+    public void run() {
+        String document;
+        try {
+            document = new String(Files.readAllBytes(Paths.get(inputFile)), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            LOG.fatal(ex);
+            return;
+        }
+        List<Query> textQueries = Collections.<Query>singletonList(new TermQuery(new Term("content", term)));
+
+        StringBuilder input = new StringBuilder(document.length() * MAX_COPIES);
+        for (int copies = 1; copies <= MAX_COPIES; copies *= 2) {
+            while (input.length() < document.length() * copies) {
+                input.append(document);
+            }
+            String content = input.toString();
+            FormulaOffsets offsets = FormulaOffsets.build(content);
+            int formulae = offsets.size();
+            if (formulae == 0) {
+                LOG.error("No formulae found in {}", inputFile);
+                return;
+            }
+
+            long[] times = new long[2];
+            int length = 0;
+            for (int round = 0; round <= ROUNDS; round++) {
+                for (int stored = 0; stored < 2; stored++) {
+                    List<Span> spans = new ArrayList<>();
+                    spans.add(new Span(0, "", formulae - 1, 1));
+                    spans.add(new Span(0, "", Math.max(0, formulae - 2), 0.5f));
+                    long start = System.nanoTime();
+                    length = NiceSnippetExtractor.getSnippet(content, spans, textQueries, stored == 1 ? offsets : null).length();
+                    if (round > 0) {
+                        times[stored] += System.nanoTime() - start;
+                    }
+                }
+            }
+            LOG.info("{} chars, {} formulae: {} ms per snippet, {} ms with stored formula offsets, snippet length {}",
+                    content.length(), formulae, times[0] / ROUNDS / 1000000.0, times[1] / ROUNDS / 1000000.0, length);
+        }
+    }
+}
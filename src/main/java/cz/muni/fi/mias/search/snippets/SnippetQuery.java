@@ -0,0 +1,105 @@
+package cz.muni.fi.mias.search.snippets;
+
+import cz.muni.fi.mias.math.PayloadHelper;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermContext;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.spans.SpanTermQuery;
+import org.apache.lucene.search.spans.Spans;
+
+/**
+ * Query state shared by snippet extraction of all hits of one result page.
+ * Query is rewritten and split to span term queries (formulae) and other
+ * queries (text) once, term states of the span queries are looked up once for
+ * the whole index, spans of each hit are then read only from the segment
+ * containing the hit. Instance is thread-safe.
+ */
+public class SnippetQuery {
+
+    private final IndexReader indexReader;
+    private final List<SpanTermQuery> spanTermQueries = new ArrayList<>();
+    private final List<Query> nonSpanTermQueries = new ArrayList<>();
+    private final Map<Term, TermContext> termContexts = new HashMap<>();
+
+    /**
+     * @param query query whose matches are highlighted
+     * @param indexReader reader the hits come from
+     * @throws IOException if the query cannot be rewritten
+     */
+    public SnippetQuery(Query query, IndexReader indexReader) throws IOException {
+        this.indexReader = indexReader;
+        splitQuery(query);
+        for (SpanTermQuery stq : spanTermQueries) {
+            Term term = stq.getTerm();
+            if (!termContexts.containsKey(term)) {
+                termContexts.put(term, TermContext.build(indexReader.getContext(), term));
+            }
+        }
+    }
+
+    private void splitQuery(Query query) throws IOException {
+        Query q = query.rewrite(indexReader);
+        if (q instanceof SpanTermQuery) {
+            spanTermQueries.add((SpanTermQuery) q);
+        } else {
+            if (q instanceof BooleanQuery) {
+                BooleanClause[] bcs = ((BooleanQuery) q).getClauses();
+                for (BooleanClause bc : bcs) {
+                    splitQuery(bc.getQuery());
+                }
+            } else {
+                nonSpanTermQueries.add(q);
+            }
+        }
+    }
+
+    /**
+     * Finds positions of the formulae of the query in the given document.
+     *
+     * @param docNumber document number in the whole index
+     * @return spans of all formulae of the query in the document
+     * @throws IOException if the spans cannot be read
+     */
+    public List<Span> getSpans(int docNumber) throws IOException {
+        List<Span> result = new ArrayList<>();
+        List<AtomicReaderContext> leaves = indexReader.leaves();
+        AtomicReaderContext context = leaves.get(ReaderUtil.subIndex(docNumber, leaves));
+        int doc = docNumber - context.docBase;
+        for (SpanTermQuery q : spanTermQueries) {
+            Spans spans = q.getSpans(context, null, termContexts);
+            if (spans.skipTo(doc) && spans.doc() == doc) {
+                String term = q.toString();
+                do {
+                    Collection<byte[]> payloads = spans.getPayload();
+                    result.add(new Span(spans.doc(), term, spans.start(), PayloadHelper.decodeFloatFromShortBytes(payloads.iterator().next())));
+                } while (spans.next() && spans.doc() == doc);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return queries that are not span term queries, text part of the query
+     */
+    public List<Query> getNonSpanTermQueries() {
+        return nonSpanTermQueries;
+    }
+
+    /**
+     * @return span term queries of the formulae
+     */
+    public List<SpanTermQuery> getSpanTermQueries() {
+        return spanTermQueries;
+    }
+}